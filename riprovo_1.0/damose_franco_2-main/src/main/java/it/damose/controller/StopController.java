@@ -1,10 +1,22 @@
 package it.damose.controller;
 
-import it.damose.model.VehiclePosition;
+import it.damose.data.GtfsDataset;
+import it.damose.data.GtfsSnapshot;
 import it.damose.data.RouteLoader;
 import it.damose.data.StopsLoader;
 import it.damose.data.TripLoader;
 import it.damose.data.StopTimesLoader;
+import it.damose.data.GtfsIds;
+import it.damose.data.GtfsLoadPipeline;
+import it.damose.data.StopTimeTable;
+import it.damose.data.TimetableRef;
+import it.damose.data.ServiceCalendar;
+import it.damose.data.StopScheduleIndex;
+import it.damose.data.StopRouteIndex;
+import it.damose.data.StopSearchIndex;
+import it.damose.data.FuzzyIndex;
+import it.damose.data.StopSpatialIndex;
+import it.damose.data.TripSpanIndex;
 import it.damose.model.Route;
 import it.damose.model.Stop;
 import it.damose.model.Trip;
@@ -14,55 +26,112 @@ import java.util.HashSet;
 import java.util.Comparator;
 import java.util.*;
 import java.util.stream.Collectors;
+import it.damose.data.ShapeIndex;
 import it.damose.data.ShapeLoader;
-import it.damose.model.ShapePoint;
+import it.damose.model.ShapePath;
+import it.damose.model.RouteTopology;
+import it.damose.util.TimeUtil;
+import it.damose.util.SearchText;
 import java.util.Collections;
 import java.util.List;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntUnaryOperator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class StopController {
 
     private final List<Stop> stops = new ArrayList<>();
     private final List<Route> routes = new ArrayList<>();
     private final List<Trip> trips = new ArrayList<>();
-    private final Map<String, List<ShapePoint>> shapeMap = new HashMap<>();
-    private final Map<String, Stop> stopMap = new HashMap<>();
-    private final Map<String, Route> routeMap = new HashMap<>();
-    private final Map<String, Trip> tripMap = new HashMap<>();
+    private final List<Stop> stopCatalogue = Collections.unmodifiableList(stops);
+
+    // Accesso diretto per indice nei dizionari globali (GtfsIds)
+    private Stop[] stopByIndex;
+    private Route[] routeByIndex;
+    private Trip[] tripByIndex;
+    private StopRouteIndex stopRoutes;
+    private StopSearchIndex stopSearch;
+
+    // Ricerca approssimata, usata quando quella per sottostringa non trova niente
+    private static final int FUZZY_LIMIT = 20;
+    private FuzzyIndex stopFuzzy;
+    private FuzzyIndex routeFuzzy;
+    private StopSpatialIndex stopSpatial;
+    private volatile AtomicReferenceArray<RouteTopology> topologies;
+    private volatile StopTimeTable stopTimes;
+    // Tabella vista dai Trip: sostituita con una sola scrittura a ogni cambio di finestra
+    private TimetableRef timetable;
+    // Ultimo indice orari pronto: null solo finché non è finita la prima costruzione
+    private volatile StopScheduleIndex scheduleIndex;
+    // Indice orari e percorsi simulati si costruiscono qui, non nel pool comune:
+    // quello serve ai tick paralleli del simulatore, che non devono aspettarli
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "damose-gtfs-index");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile VehicleSimulator simulator;
+    // Thread della simulazione (avviato al primo uso) e ultima copia delle posizioni
+    private ScheduledExecutorService simulationExecutor;
+    private volatile VehicleSimulator.Positions simulatedPositions = VehicleSimulator.Positions.EMPTY;
+    private volatile LocalDate shapesPreparedFor; // giorno per cui sono stati preparati i percorsi
+
+    // Calendario dei servizi: un trip conta solo nei giorni in cui il suo servizio è attivo
+    private static final String SERVICE_DAYS_PROPERTY = "damose.gtfs.serviceDays";
+    private final ServiceCalendar calendar;
+    private final Map<LocalDate, BitSet> activeByDate = new HashMap<>();
+
+    // Con -Ddamose.gtfs.serviceDays=N restano in memoria solo gli stop_times dei
+    // servizi attivi da ieri fino a oggi + N giorni, domani compreso (0 = tutti)
+    private final int serviceDays;
+    private ScheduledExecutorService serviceWindowExecutor;
 
     public StopController(String s) {
         System.out.println("========================================");
         System.out.println("INIZIALIZZAZIONE STOP CONTROLLER");
         System.out.println("========================================");
 
-        // 1. Carica dati base
-        System.out.println("\n[1/7] Caricamento fermate...");
-        stopMap.putAll(StopsLoader.loadStopsFromResources());
-        stops.addAll(stopMap.values());
-
-        System.out.println("[2/7] Caricamento linee...");
-        routeMap.putAll(RouteLoader.loadRoutesFromResources());
-        routes.addAll(routeMap.values());
-
-        System.out.println("[3/7] Caricamento viaggi...");
-        trips.addAll(TripLoader.loadTripsFromResources());
-
-        System.out.println("[4/7] Caricamento percorsi (shapes)...");
-        shapeMap.putAll(ShapeLoader.loadShapesFromResources());
-
-        // 2. Crea mappa trip_id -> Trip
-        System.out.println("[5/7] Creazione mappa trip...");
-        for (Trip trip : trips) {
-            tripMap.put(trip.getId(), trip);
+        // Avvio rapido: snapshot binario del modello già collegato
+        GtfsDataset data = GtfsSnapshot.load();
+        if (data != null) {
+            System.out.println("Modello caricato dallo snapshot binario");
+        } else {
+            System.out.println("\nCaricamento dai file GTFS...");
+            data = GtfsLoadPipeline.load();
+            GtfsDataset loaded = data;
+            // Demone: chiudendo la finestra non si aspetta la scrittura (save scrive su un
+            // file temporaneo e lo rinomina, quindi uno snapshot interrotto non resta a metà)
+            Thread saver = new Thread(() -> GtfsSnapshot.save(loaded), "gtfs-snapshot");
+            saver.setDaemon(true);
+            saver.start();
         }
 
-        // 3. ⭐ IMPORTANTE: Carica e collega gli stop_times ai trip
-        System.out.println("[6/7] Caricamento e collegamento stop_times...");
-        StopTimesLoader.loadAndLinkStopTimes(trips);
-
-        // 4. Collega trip alle route e fermate alle route
-        System.out.println("[7/7] Collegamento trip alle route...");
-        TripLoader.linkTripsToRoutes(trips, routes);
-        StopsLoader.linkStopsToRoutes(stops, routes);
+        stops.addAll(data.getStops());
+        routes.addAll(data.getRoutes());
+        trips.addAll(data.getTrips());
+        stopRoutes = data.getStopRoutes();
+        buildIndexes();
+        buildSearchIndexes();
+        stopSpatial = StopSpatialIndex.build(stops);
+
+        calendar = ServiceCalendar.load();
+        serviceDays = Math.max(0, Integer.getInteger(SERVICE_DAYS_PROPERTY, 0));
+        StopTimeTable table = data.getStopTimes();
+        timetable = new TimetableRef(table);
+        for (int i = 0; i < trips.size(); i++) {
+            trips.get(i).attachStopTimes(timetable, i);
+        }
+        if (serviceDays > 0 && !calendar.isEmpty()) {
+            table = applyServiceWindow(table);
+        }
+        setStopTimes(table);
 
         // 5. Debug finale
         System.out.println("\n========================================");
@@ -71,7 +140,7 @@ public class StopController {
         System.out.println("Fermate caricate: " + stops.size());
         System.out.println("Linee caricate: " + routes.size());
         System.out.println("Viaggi caricati: " + trips.size());
-        System.out.println("Percorsi (shapes) caricati: " + shapeMap.size());
+        System.out.println("Percorsi (shapes): caricati su richiesta da shapes.txt");
 
         // 6. Verifica integrità dati
         verifyDataIntegrity();
@@ -80,6 +149,172 @@ public class StopController {
         TripLoader.debugRouteShapes(routes);
     }
 
+    /**
+     * Prepara le tabelle id -> oggetto indicizzate come i dizionari globali
+     */
+    private void buildIndexes() {
+        stopByIndex = new Stop[GtfsIds.STOPS.size()];
+        for (Stop stop : stops) {
+            stopByIndex[stop.getIndex()] = stop;
+        }
+        routeByIndex = new Route[GtfsIds.ROUTES.size()];
+        for (Route route : routes) {
+            routeByIndex[route.getIndex()] = route;
+        }
+        tripByIndex = new Trip[GtfsIds.TRIPS.size()];
+        for (Trip trip : trips) {
+            tripByIndex[trip.getIndex()] = trip;
+        }
+    }
+
+    private static <T> T byIndex(T[] table, int index) {
+        return index >= 0 && index < table.length ? table[index] : null;
+    }
+
+    /**
+     * @return i servizi attivi oggi
+     */
+    private BitSet activeServicesToday() {
+        return activeServices(LocalDate.now());
+    }
+
+    /**
+     * @return i servizi attivi nella data (in cache per le ultime date richieste)
+     */
+    private synchronized BitSet activeServices(LocalDate date) {
+        if (activeByDate.size() > 8) {
+            activeByDate.clear();
+        }
+        return activeByDate.computeIfAbsent(date, calendar::activeServices);
+    }
+
+    /**
+     * @return true se il trip circola oggi (sempre, se il feed non ha calendario)
+     */
+    private boolean isRunning(Trip trip, BitSet active) {
+        if (calendar.isEmpty()) {
+            return true;
+        }
+        int service = trip.getServiceIndex();
+        return service >= 0 && active.get(service);
+    }
+
+    /**
+     * @return le posizioni in trips dei trip attivi da ieri (corse dopo mezzanotte)
+     *         fino a oggi + serviceDays: domani è sempre incluso, perché
+     *         getNextArrivals cerca anche le partenze dopo mezzanotte
+     */
+    private BitSet tripsInServiceWindow(LocalDate today) {
+        BitSet services = calendar.activeServices(today.minusDays(1), serviceDays + 2);
+        BitSet keep = new BitSet(trips.size());
+        for (int i = 0; i < trips.size(); i++) {
+            int service = trips.get(i).getServiceIndex();
+            if (service >= 0 && services.get(service)) {
+                keep.set(i);
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * Sostituisce la tabella degli stop_times e ricostruisce in background l'indice
+     * per fermata (getNextArrivals intanto usa il precedente)
+     */
+    private void setStopTimes(StopTimeTable table) {
+        int[] routeOfTrip = new int[trips.size()];
+        for (int i = 0; i < routeOfTrip.length; i++) {
+            routeOfTrip[i] = trips.get(i).getRouteIndex();
+        }
+
+        stopTimes = table;
+        timetable.set(table);
+        int[] serviceOfTrip = null;
+        if (!calendar.isEmpty()) {
+            serviceOfTrip = new int[trips.size()];
+            for (int i = 0; i < serviceOfTrip.length; i++) {
+                serviceOfTrip[i] = trips.get(i).getServiceIndex();
+            }
+        }
+        int[] shapeOfTrip = new int[trips.size()];
+        for (int i = 0; i < shapeOfTrip.length; i++) {
+            shapeOfTrip[i] = trips.get(i).getShapeIndex();
+        }
+        VehicleSimulator sim = new VehicleSimulator(TripSpanIndex.build(table), stopByIndex, routeOfTrip,
+                serviceOfTrip, shapeOfTrip, ShapeLoader::getPoints);
+        simulator = sim;
+        topologies = new AtomicReferenceArray<>(routeByIndex.length);
+        // Prima dei percorsi simulati (stesso thread): fino a quando il nuovo indice
+        // non è pronto resta in uso il precedente
+        CompletableFuture.runAsync(() -> {
+            long start = System.currentTimeMillis();
+            StopScheduleIndex index = StopScheduleIndex.build(table);
+            scheduleIndex = index;
+            System.out.println("Indice orari per fermata: " + index.size() + " passaggi in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }, indexExecutor);
+        prepareSimulatorShapes(sim, LocalDate.now());
+    }
+
+    /**
+     * Prepara in background i percorsi dei trip in servizio da ieri a domani (domani
+     * perché dopo mezzanotte i veicoli lo seguano finché non si ripreparano)
+     */
+    private void prepareSimulatorShapes(VehicleSimulator sim, LocalDate today) {
+        shapesPreparedFor = today;
+        BitSet services = calendar.isEmpty() ? null : calendar.activeServices(today.minusDays(1), 3);
+        CompletableFuture.runAsync(() -> {
+            long start = System.currentTimeMillis();
+            sim.prepareShapes(services);
+            System.out.println("Percorsi dei veicoli simulati pronti in " + (System.currentTimeMillis() - start) + " ms");
+        }, indexExecutor);
+    }
+
+    /**
+     * Riduce la tabella caricata alla finestra di servizio e pianifica lo
+     * spostamento della finestra a ogni mezzanotte
+     * @return la tabella ridotta (la pubblica setStopTimes)
+     */
+    private StopTimeTable applyServiceWindow(StopTimeTable table) {
+        BitSet keep = tripsInServiceWindow(LocalDate.now());
+        table = table.retainTrips(keep);
+        System.out.println("Finestra di servizio: " + serviceDays + " giorni, " + keep.cardinality()
+                + " trip e " + table.size() + " stop_times in memoria");
+
+        serviceWindowExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gtfs-service-window");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduleServiceWindowRollover();
+        return table;
+    }
+
+    private void scheduleServiceWindowRollover() {
+        LocalDateTime now = LocalDateTime.now();
+        long delay = Duration.between(now, now.toLocalDate().plusDays(1).atStartOfDay()).toMillis();
+        serviceWindowExecutor.schedule(this::rollServiceWindow, delay + 1000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A mezzanotte rilegge gli stop_times dallo snapshot binario (o, se manca, da
+     * stop_times.txt) tenendo solo i trip della nuova finestra; la tabella
+     * precedente resta in uso finché quella nuova non è pronta
+     */
+    private void rollServiceWindow() {
+        try {
+            BitSet keep = tripsInServiceWindow(LocalDate.now());
+            StopTimeTable full = GtfsSnapshot.loadStopTimes(trips);
+            setStopTimes(full != null ? full.retainTrips(keep)
+                    : StopTimesLoader.buildStopTimes(StopTimesLoader.parseStopTimes(), trips, keep));
+            System.out.println("Finestra di servizio aggiornata: " + keep.cardinality() + " trip");
+        } catch (Exception e) {
+            System.err.println("Errore aggiornamento finestra di servizio");
+            e.printStackTrace();
+        } finally {
+            scheduleServiceWindowRollover();
+        }
+    }
+
     /**
      * Verifica l'integrità dei dati caricati
      */
@@ -129,45 +364,134 @@ public class StopController {
         System.out.println("========================================\n");
     }
 
+    /**
+     * @return le k fermate più vicine al punto entro maxMeters, dalla più vicina
+     */
+    public List<Stop> getNearestStops(double lat, double lon, int k, double maxMeters) {
+        return stopSpatial.nearest(lat, lon, k, maxMeters);
+    }
+
+    /**
+     * @return le fermate entro radiusMeters dal punto, dalla più vicina
+     */
+    public List<Stop> getStopsWithin(double lat, double lon, double radiusMeters) {
+        return stopSpatial.within(lat, lon, radiusMeters);
+    }
+
+    /**
+     * @return le fermate nel riquadro (ad esempio l'area visibile della mappa)
+     */
+    public List<Stop> getStopsInBox(double minLat, double minLon, double maxLat, double maxLon) {
+        return stopSpatial.inBox(minLat, minLon, maxLat, maxLon);
+    }
+
+    /**
+     * @return tutte le fermate, in sola lettura (la lista non cambia dopo il caricamento)
+     */
     public List<Stop> getStops() {
-        return stops;
+        return stopCatalogue;
     }
 
     public List<Route> getRoutes() {
         return routes;
     }
 
+    /**
+     * @return true se l'indice orari è pronto e getNextArrivals può rispondere
+     */
+    public boolean isScheduleReady() {
+        return scheduleIndex != null;
+    }
+
     public List<Trip> getTrips() {
         return trips;
     }
 
+    /**
+     * Prossimi passaggi alla fermata a partire da adesso.
+     * Per ogni giorno di servizio (ieri per le corse oltre la mezzanotte, oggi e domani)
+     * una ricerca binaria trova il primo passaggio utile; le tre sequenze, già ordinate,
+     * vengono poi fuse fino a raggiungere il limite.
+     * Non attende l'indice orari: finché il primo non è pronto (vedi isScheduleReady)
+     * restituisce una lista vuota, così l'EDT non si blocca all'avvio.
+     */
     public List<StopTime> getNextArrivals(Stop stop, int limit) {
-        if (stop == null) {
+        StopScheduleIndex index = scheduleIndex;
+        if (stop == null || limit <= 0 || index == null) {
             return Collections.emptyList();
         }
 
-        List<StopTime> allArrivals = new ArrayList<>();
+        int stopIndex = stop.getIndex();
+        LocalDateTime now = LocalDateTime.now();
+        int nowInSeconds = now.toLocalTime().toSecondOfDay();
+
+        // Ieri (orari oltre le 24:00), oggi e domani; senza calendario ogni servizio
+        // vale per tutti e tre i giorni (isRunning)
+        int firstDay = -1;
+        int lastDay = 1;
+        int days = lastDay - firstDay + 1;
+        int[] cursor = new int[days];
+        BitSet[] active = new BitSet[days];
+        for (int d = 0; d < days; d++) {
+            int offset = (firstDay + d) * TimeUtil.SECONDS_PER_DAY;
+            active[d] = activeServices(now.toLocalDate().plusDays(firstDay + d));
+            cursor[d] = index.firstAtOrAfter(stopIndex, nowInSeconds - offset);
+        }
 
-        for (Trip trip : tripMap.values()) {
-            for (StopTime st : trip.getStopTimes()) {
-                if (st.getStopId().equals(stop.getId())) {
-                    allArrivals.add(st);
+        int end = index.end(stopIndex);
+        List<StopTime> result = new ArrayList<>(limit);
+        while (result.size() < limit) {
+            int best = -1;
+            long bestTime = Long.MAX_VALUE;
+            for (int d = 0; d < days; d++) {
+                while (cursor[d] < end && !isRunning(trips.get(index.trip(cursor[d])), active[d])) {
+                    cursor[d]++;
                 }
+                if (cursor[d] < end) {
+                    long time = index.time(cursor[d]) + (long) (firstDay + d) * TimeUtil.SECONDS_PER_DAY;
+                    if (time < bestTime) {
+                        bestTime = time;
+                        best = d;
+                    }
+                }
+            }
+            if (best < 0) {
+                break;
             }
+            result.add(index.stopTime(stopIndex, cursor[best]++));
+        }
+        return result;
+    }
+
+    /**
+     * Indici di ricerca sui nomi, costruiti una volta sola
+     */
+    private void buildSearchIndexes() {
+        stopSearch = StopSearchIndex.build(stops);
+
+        String[] stopKeys = new String[stops.size()];
+        for (int i = 0; i < stopKeys.length; i++) {
+            stopKeys[i] = SearchText.fold(stops.get(i).getName());
         }
+        stopFuzzy = FuzzyIndex.build(stopKeys);
 
-        allArrivals.sort(Comparator.comparing(StopTime::getArrivalTime));
-        return allArrivals.stream().limit(limit).collect(Collectors.toList());
+        String[] routeKeys = new String[routes.size()];
+        for (int i = 0; i < routeKeys.length; i++) {
+            Route r = routes.get(i);
+            routeKeys[i] = SearchText.fold(r.getShortName() + " " + r.getLongName());
+        }
+        routeFuzzy = FuzzyIndex.build(routeKeys);
     }
 
     public String getArrivalInfo(StopTime st) {
-        Trip trip = tripMap.get(st.getTripId());
+        Trip trip = byIndex(tripByIndex, st.getTripIndex());
         if (trip == null) return "N/A";
 
-        Route route = routeMap.get(trip.getRouteId());
+        Route route = byIndex(routeByIndex, trip.getRouteIndex());
         String routeName = (route != null) ? route.getName() : trip.getRouteId();
 
-        return routeName + " - " + st.getArrivalTime();
+        // Le corse oltre la mezzanotte hanno ore >= 24: si mostra l'orario sull'orologio
+        return routeName + " - " + TimeUtil.format(st.getArrivalSeconds() % TimeUtil.SECONDS_PER_DAY);
     }
 
     public List<Route> searchRoutes(String query) {
@@ -195,201 +519,170 @@ public class StopController {
             return r1.getName().compareTo(r2.getName());
         });
 
+        // Nessuna corrispondenza esatta: si prova con gli errori di battitura
+        if (results.isEmpty()) {
+            for (int i : routeFuzzy.search(SearchText.fold(query), FUZZY_LIMIT)) {
+                results.add(routes.get(i));
+            }
+        }
+
         return results;
     }
 
+    /**
+     * Fermate il cui nome contiene la query (o con id uguale), tramite l'indice a trigrammi.
+     * Se non ce ne sono, le più vicine entro una o due lettere sbagliate per parola.
+     */
     public List<Stop> searchStops(String query) {
-        List<Stop> results = new ArrayList<>();
-        String q = query.toLowerCase();
-
-        for (Stop s : stops) {
-            if (s.getName().toLowerCase().contains(q) || s.getId().equalsIgnoreCase(q)) {
-                results.add(s);
-            }
+        List<Stop> results = stopSearch.search(query);
+        if (!results.isEmpty()) {
+            return results;
         }
-
-        return results;
+        int[] fuzzy = stopFuzzy.search(SearchText.fold(query), FUZZY_LIMIT);
+        List<Stop> approximate = new ArrayList<>(fuzzy.length);
+        for (int i : fuzzy) {
+            approximate.add(stops.get(i));
+        }
+        return approximate;
     }
 
+    /**
+     * @return le fermate della linea (vista in sola lettura sull'indice fermate <-> linee)
+     */
     public List<Stop> getStopsForRoute(Route route) {
-        if (route == null || route.getAllStopIds() == null) {
+        if (route == null) {
             return Collections.emptyList();
         }
-
-        List<Stop> result = new ArrayList<>();
-        for (String stopId : route.getAllStopIds()) {
-            Stop s = stopMap.get(stopId);
-            if (s != null) result.add(s);
-        }
-
-        return result;
+        int r = route.getIndex();
+        return slice(stopRoutes.stopsStart(r), stopRoutes.stopsEnd(r), stopRoutes::stopAt, stopByIndex);
     }
 
+    /**
+     * @return le linee che servono la fermata, ordinate per nome (vista in sola lettura)
+     */
     public List<Route> getRoutesForStop(Stop stop) {
         if (stop == null) {
             return Collections.emptyList();
         }
+        int s = stop.getIndex();
+        return slice(stopRoutes.routesStart(s), stopRoutes.routesEnd(s), stopRoutes::routeAt, routeByIndex);
+    }
 
-        Set<String> routeIds = new HashSet<>();
-
-        for (Trip trip : tripMap.values()) {
-            List<StopTime> stopTimes = trip.getStopTimes();
-            if (stopTimes != null) {
-                for (StopTime st : stopTimes) {
-                    if (st.getStopId().equals(stop.getId())) {
-                        routeIds.add(trip.getRouteId());
-                        break;
-                    }
+    /**
+     * Vista sugli oggetti corrispondenti agli indici [from, to) dell'indice fermate <-> linee
+     */
+    private static <T> List<T> slice(int from, int to, IntUnaryOperator indexAt, T[] table) {
+        return new AbstractList<>() {
+            @Override
+            public T get(int i) {
+                if (i < 0 || i >= to - from) {
+                    throw new IndexOutOfBoundsException("Indice " + i + " su " + (to - from));
                 }
+                return table[indexAt.applyAsInt(from + i)];
             }
-        }
 
-        List<Route> result = new ArrayList<>();
-        for (String routeId : routeIds) {
-            Route r = routeMap.get(routeId);
-            if (r != null) {
-                result.add(r);
+            @Override
+            public int size() {
+                return to - from;
             }
-        }
+        };
+    }
 
-        result.sort(Comparator.comparing(Route::getName));
-        return result;
+    public Route getRouteByIndex(int index) {
+        return byIndex(routeByIndex, index);
     }
 
     public Route getRouteById(String id) {
-        return routeMap.get(id);
+        return byIndex(routeByIndex, GtfsIds.ROUTES.indexOf(id));
     }
 
     public Stop getStopById(String id) {
-        return stopMap.get(id);
+        return byIndex(stopByIndex, GtfsIds.STOPS.indexOf(id));
     }
 
-    private long timeToSeconds(String time) {
-        if (time.startsWith("24")) time = time.replace("24", "00");
-        if (time.startsWith("25")) time = time.replace("25", "01");
-
-        try {
-            String[] parts = time.split(":");
-            long hours = Long.parseLong(parts[0]);
-            long minutes = Long.parseLong(parts[1]);
-            long seconds = Long.parseLong(parts[2]);
-            return (hours * 3600) + (minutes * 60) + seconds;
-        } catch (Exception e) {
-            return -1;
-        }
+    /**
+     * Posizioni dei veicoli simulati (orari statici) all'ultimo tick. Al primo
+     * utilizzo avvia il thread che fa avanzare la simulazione una volta al secondo.
+     * @return una copia che non cambia più: leggibile dall'EDT senza lock
+     */
+    public VehicleSimulator.Positions getSimulatedPositions() {
+        startSimulation();
+        return simulatedPositions;
     }
 
-    private float calculateBearing(Stop s1, Stop s2) {
-        double lat1 = Math.toRadians(s1.getLat());
-        double lon1 = Math.toRadians(s1.getLon());
-        double lat2 = Math.toRadians(s2.getLat());
-        double lon2 = Math.toRadians(s2.getLon());
-
-        double dLon = lon2 - lon1;
-        double y = Math.sin(dLon) * Math.cos(lat2);
-        double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
-
-        double bearing = Math.toDegrees(Math.atan2(y, x));
-        return (float) (bearing + 360) % 360;
+    private synchronized void startSimulation() {
+        if (simulationExecutor != null) {
+            return;
+        }
+        simulationExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "damose-simulation");
+            t.setDaemon(true);
+            return t;
+        });
+        simulationExecutor.scheduleWithFixedDelay(this::tickSimulation, 0, 1, TimeUnit.SECONDS);
     }
 
-    public List<VehiclePosition> getSimulatedVehiclePositions() {
-        List<VehiclePosition> simulatedVehicles = new ArrayList<>();
-
-        java.time.LocalTime now = java.time.LocalTime.now();
-        long nowInSeconds = now.toSecondOfDay();
-
-        for (Trip trip : trips) {
-            List<StopTime> stopTimes = trip.getStopTimes();
-            if (stopTimes.size() < 2) continue;
-
-            for (int i = 0; i < stopTimes.size() - 1; i++) {
-                StopTime st1 = stopTimes.get(i);
-                StopTime st2 = stopTimes.get(i + 1);
-
-                long time1 = timeToSeconds(st1.getArrivalTime());
-                long time2 = timeToSeconds(st2.getArrivalTime());
-
-                if (time1 != -1 && time2 != -1 && time1 <= nowInSeconds && time2 >= nowInSeconds) {
-                    Stop s1 = stopMap.get(st1.getStopId());
-                    Stop s2 = stopMap.get(st2.getStopId());
-
-                    if (s1 == null || s2 == null) continue;
-
-                    double segmentDuration = time2 - time1;
-                    double timeElapsed = nowInSeconds - time1;
-                    double progress = (segmentDuration == 0) ? 0 : (timeElapsed / segmentDuration);
-
-                    double lat = s1.getLat() + (s2.getLat() - s1.getLat()) * progress;
-                    double lon = s1.getLon() + (s2.getLon() - s1.getLon()) * progress;
-
-                    float bearing = calculateBearing(s1, s2);
-
-                    VehiclePosition vp = new VehiclePosition(trip.getId(), trip.getRouteId(), lat, lon, bearing);
-                    simulatedVehicles.add(vp);
-
-                    break;
-                }
+    /**
+     * Avanza la simulazione all'ora attuale e pubblica la copia delle posizioni.
+     * Il primo tick dopo l'avvio, un cambio di giorno o di tabella può essere lento
+     * (scorre i trip già partiti), ma gira qui e non sull'EDT.
+     */
+    private void tickSimulation() {
+        try {
+            // Gli orari sono relativi al giorno di servizio: le corse di ieri con ore >= 24
+            // sono ancora in viaggio, e per loro adesso vale now + 24h (lo gestisce il simulatore)
+            LocalDateTime now = LocalDateTime.now();
+            LocalDate today = now.toLocalDate();
+            VehicleSimulator sim = simulator;
+            if (!today.equals(shapesPreparedFor)) {
+                prepareSimulatorShapes(sim, today); // cambio di giorno: cambiano i trip in servizio
             }
+            simulatedPositions = sim.snapshot(today, now.toLocalTime().toSecondOfDay(),
+                    activeServices(today), activeServices(today.minusDays(1)));
+        } catch (Exception e) {
+            // Un'eccezione fermerebbe i tick successivi dello scheduler
+            System.err.println("Errore simulazione veicoli");
+            e.printStackTrace();
         }
-
-        return simulatedVehicles;
     }
 
     /**
-     * Ottiene i punti del percorso (shape) per una route specifica
+     * Topologia della linea (fermate ordinate e shape per direzione, riquadro),
+     * calcolata al primo utilizzo e poi riusata
      */
-    public List<ShapePoint> getShapeForRoute(Route route) {
-        if (route == null) {
-            System.out.println("DEBUG SHAPE: Route è null");
-            return Collections.emptyList();
+    public RouteTopology getTopology(Route route) {
+        AtomicReferenceArray<RouteTopology> cache = topologies;
+        int r = route.getIndex();
+        RouteTopology topology = r < cache.length() ? cache.get(r) : null;
+        if (topology != null) {
+            return topology;
         }
 
-        if (route.getTrips().isEmpty()) {
-            System.out.println("DEBUG SHAPE: La route '" + route.getName() +
-                    "' non ha trip collegati (trips.size = 0)");
-            return Collections.emptyList();
-        }
-
-        // Cerca il primo shape_id disponibile
-        String shapeId = null;
-        int tripCount = 0;
-
-        for (Trip trip : route.getTrips()) {
-            tripCount++;
-            String currentShapeId = trip.getShapeId();
-
-            if (currentShapeId != null && !currentShapeId.isEmpty()) {
-                shapeId = currentShapeId;
-                System.out.println("DEBUG SHAPE: Trovato shape_id '" + shapeId +
-                        "' nel trip #" + tripCount + " (ID: " + trip.getId() +
-                        ") della route '" + route.getName() + "'");
-                break;
-            }
+        // Calcolo idempotente: se due thread la costruiscono insieme ne resta una
+        topology = RouteTopology.build(route, i -> byIndex(stopByIndex, i), ShapeLoader::getShape);
+        if (topology.getShape().size() == 0) {
+            ShapeIndex index = ShapeLoader.getIndex();
+            System.out.println("Linea " + route.getName() + ": nessuno shape disponibile (shapes presenti: "
+                    + (index != null ? index.size() : 0) + "), percorso disegnato con le fermate");
         }
-
-        if (shapeId == null) {
-            System.out.println("DEBUG SHAPE: Nessuno shape_id trovato nei " + tripCount +
-                    " trip della route '" + route.getName() + "' (ID: " + route.getId() + ")");
-            return Collections.emptyList();
+        if (r < cache.length() && !cache.compareAndSet(r, null, topology)) {
+            topology = cache.get(r);
         }
+        return topology;
+    }
 
-        // Cerca i punti dello shape
-        List<ShapePoint> points = shapeMap.getOrDefault(shapeId, Collections.emptyList());
-
-        if (points.isEmpty()) {
-            System.out.println("DEBUG SHAPE: Shape_id '" + shapeId +
-                    "' trovato ma nessun punto presente in shapes.txt");
-            System.out.println("  Shapes disponibili in memoria: " + shapeMap.size());
-            System.out.println("  Primi 5 shape_id disponibili:");
-            shapeMap.keySet().stream().limit(5).forEach(id ->
-                    System.out.println("    - " + id + " (" + shapeMap.get(id).size() + " punti)"));
-        } else {
-            System.out.println("DEBUG SHAPE: ✓ Trovati " + points.size() +
-                    " punti per shape_id '" + shapeId +
-                    "' della route '" + route.getName() + "'");
-        }
+    /**
+     * Ottiene il percorso (shape) di una route, semplificato per il livello di zoom
+     * della mappa
+     */
+    public ShapePath getShapeForRoute(Route route, int zoom) {
+        return getShapeForRoute(route).forZoom(zoom);
+    }
 
-        return points;
+    /**
+     * Ottiene il percorso (shape) rappresentativo di una route
+     */
+    public ShapePath getShapeForRoute(Route route) {
+        return route != null ? getTopology(route).getShape() : ShapePath.EMPTY;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,515 @@
+package it.damose.controller;
+
+import it.damose.data.ShapeTrack;
+import it.damose.data.StopTimeTable;
+import it.damose.data.TripSpanIndex;
+import it.damose.model.ShapePoint;
+import it.damose.model.Stop;
+import it.damose.util.TimeUtil;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+
+/**
+ * Simulazione incrementale dei veicoli dagli orari statici. Per ogni giorno di
+ * servizio in corso (oggi, e ieri per le corse dopo mezzanotte) tiene i trip in
+ * viaggio con il tratto corrente (cursore sulla riga degli stop_times); a ogni tick
+ * i nuovi trip entrano dalla coda ordinata per partenza, i cursori avanzano e i trip
+ * arrivati escono. Le posizioni finiscono in un buffer di array primitivi riusato
+ * tra un tick e l'altro. Se l'orologio torna indietro o cambia il giorno si riparte
+ * da zero.
+ *
+ * I veicoli seguono lo shape del trip: le fermate di ogni coppia (shape, pattern)
+ * vengono proiettate una volta sul percorso (prepareShapes, in background), poi la
+ * posizione è l'interpolazione della distanza percorsa tra le due fermate del
+ * tratto. Senza shape, o finché le proiezioni non sono pronte, il veicolo va in
+ * linea retta da una fermata all'altra.
+ *
+ * Con molti trip in viaggio l'avanzamento dei cursori e il calcolo delle posizioni
+ * si dividono in fette di trip consecutivi, eseguite su un ForkJoinPool condiviso;
+ * ogni trip scrive nella sua casella del buffer, dimensionato prima di partire, e il
+ * risultato è identico a quello su un solo thread.
+ */
+public class VehicleSimulator {
+
+    // Sotto questo numero di trip in viaggio per giorno il tick resta su un thread
+    private static final int PARALLEL_THRESHOLD = 1024;
+    // Trip per unità di lavoro
+    private static final int SLICE_SIZE = 256;
+
+    /**
+     * Posizioni calcolate da un tick. Il buffer restituito da tick è valido fino al
+     * tick successivo; le copie di snapshot non cambiano più.
+     */
+    public static final class Positions {
+        /** Nessun veicolo */
+        public static final Positions EMPTY = new Positions(0);
+
+        private int size;
+        private int[] trips;
+        private int[] routes;
+        private double[] lats;
+        private double[] lons;
+        private float[] bearings;
+
+        private Positions(int capacity) {
+            trips = new int[capacity];
+            routes = new int[capacity];
+            lats = new double[capacity];
+            lons = new double[capacity];
+            bearings = new float[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return il trip (posizione nella tabella degli stop_times)
+         */
+        public int trip(int i) {
+            return trips[i];
+        }
+
+        /**
+         * @return l'indice della linea in GtfsIds.ROUTES
+         */
+        public int route(int i) {
+            return routes[i];
+        }
+
+        public double lat(int i) {
+            return lats[i];
+        }
+
+        public double lon(int i) {
+            return lons[i];
+        }
+
+        public float bearing(int i) {
+            return bearings[i];
+        }
+
+        /**
+         * @return una copia con solo le posizioni valide
+         */
+        private Positions copy() {
+            Positions copy = new Positions(size);
+            System.arraycopy(trips, 0, copy.trips, 0, size);
+            System.arraycopy(routes, 0, copy.routes, 0, size);
+            System.arraycopy(lats, 0, copy.lats, 0, size);
+            System.arraycopy(lons, 0, copy.lons, 0, size);
+            System.arraycopy(bearings, 0, copy.bearings, 0, size);
+            copy.size = size;
+            return copy;
+        }
+
+        /**
+         * Porta la capacità ad almeno n caselle
+         */
+        private void reserve(int n) {
+            if (n > trips.length) {
+                int capacity = Math.max(n, trips.length * 2);
+                trips = Arrays.copyOf(trips, capacity);
+                routes = Arrays.copyOf(routes, capacity);
+                lats = Arrays.copyOf(lats, capacity);
+                lons = Arrays.copyOf(lons, capacity);
+                bearings = Arrays.copyOf(bearings, capacity);
+            }
+        }
+
+        private void put(int slot, int trip, int route, double lat, double lon, float bearing) {
+            trips[slot] = trip;
+            routes[slot] = route;
+            lats[slot] = lat;
+            lons[slot] = lon;
+            bearings[slot] = bearing;
+        }
+
+        /**
+         * Toglie le caselle vuote (trip -1) tra le prime n, mantenendo l'ordine
+         */
+        private void compact(int n) {
+            int j = 0;
+            for (int i = 0; i < n; i++) {
+                if (trips[i] < 0) continue;
+                if (i != j) {
+                    put(j, trips[i], routes[i], lats[i], lons[i], bearings[i]);
+                }
+                j++;
+            }
+            size = j;
+        }
+    }
+
+    /**
+     * Fermate di un pattern proiettate sullo shape di un trip
+     */
+    private static final class Course {
+        private final ShapeTrack track;
+        private final float[] stopDistances;
+
+        Course(ShapeTrack track, float[] stopDistances) {
+            this.track = track;
+            this.stopDistances = stopDistances;
+        }
+    }
+
+    /**
+     * Lavoro su un intervallo di trip in viaggio [lo, hi)
+     */
+    private interface SliceWork {
+        void run(int lo, int hi);
+    }
+
+    /**
+     * Divide [lo, hi) a metà fino a fette di SLICE_SIZE trip
+     */
+    private static final class SliceTask extends RecursiveAction {
+        private final SliceWork work;
+        private final int lo;
+        private final int hi;
+
+        SliceTask(SliceWork work, int lo, int hi) {
+            this.work = work;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= SLICE_SIZE) {
+                work.run(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new SliceTask(work, lo, mid), new SliceTask(work, mid, hi));
+        }
+    }
+
+    /**
+     * I trip in viaggio di un giorno di servizio
+     */
+    private final class Lane {
+        private final int dayOffset; // 0 per oggi, un giorno per ieri
+        private LocalDate serviceDay;
+        private int lastTime = Integer.MIN_VALUE;
+        private int next; // prossima posizione della coda per partenza
+
+        private int count;
+        private int[] trips = new int[256];
+        private int[] ends = new int[256];
+        private int[] rows = new int[256];
+        private float[] bearings = new float[256];
+        private final BitSet members = new BitSet();
+
+        Lane(int dayOffset) {
+            this.dayOffset = dayOffset;
+        }
+
+        void reset(LocalDate day) {
+            serviceDay = day;
+            lastTime = Integer.MIN_VALUE;
+            next = 0;
+            count = 0;
+            members.clear();
+        }
+
+        /**
+         * Porta la simulazione del giorno all'orario time (secondi del giorno di servizio)
+         */
+        void advance(LocalDate day, int time, BitSet active) {
+            if (!day.equals(serviceDay) || time < lastTime) {
+                reset(day);
+            }
+            lastTime = time;
+
+            // Nuove partenze: i trip già arrivati (fine < time) vengono saltati
+            int last = spans.upperBound(time);
+            for (; next < last; next++) {
+                int t = spans.trip(next);
+                if (spans.end(next) >= time && isRunning(t, active)) {
+                    add(t, spans.end(next));
+                }
+            }
+
+            // Arrivati fuori, poi cursori in avanti
+            for (int i = 0; i < count; ) {
+                if (ends[i] < time) {
+                    remove(i);
+                } else {
+                    i++;
+                }
+            }
+            forEachSlice(count, (lo, hi) -> moveCursors(lo, hi, time));
+        }
+
+        private void moveCursors(int lo, int hi, int time) {
+            for (int i = lo; i < hi; i++) {
+                int t = trips[i];
+                int row = rows[i];
+                int lastRow = table.end(t) - 1;
+                if (!isSegmentAt(t, row, time)) {
+                    do {
+                        row++;
+                    } while (row < lastRow && !isSegmentAt(t, row, time));
+                    if (row < lastRow) {
+                        rows[i] = row;
+                        bearings[i] = segmentBearing(t, row);
+                    }
+                }
+            }
+        }
+
+        private void add(int t, int end) {
+            if (count == trips.length) {
+                int capacity = count * 2;
+                trips = Arrays.copyOf(trips, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                rows = Arrays.copyOf(rows, capacity);
+                bearings = Arrays.copyOf(bearings, capacity);
+            }
+            int row = table.start(t);
+            trips[count] = t;
+            ends[count] = end;
+            rows[count] = row;
+            bearings[count] = segmentBearing(t, row);
+            members.set(t);
+            count++;
+        }
+
+        private void remove(int i) {
+            members.clear(trips[i]);
+            count--;
+            trips[i] = trips[count];
+            ends[i] = ends[count];
+            rows[i] = rows[count];
+            bearings[i] = bearings[count];
+        }
+
+        /**
+         * Scrive le posizioni dei trip del giorno nelle caselle da base a base + count;
+         * i trip senza posizione lasciano la casella vuota (trip -1)
+         * @param skip trip da non scrivere (già presenti per un altro giorno), o null
+         */
+        void write(int time, Positions out, int base, BitSet skip) {
+            Course[] courses = courseOfTrip;
+            forEachSlice(count, (lo, hi) -> write(time, out, base, skip, courses, lo, hi));
+        }
+
+        private void write(int time, Positions out, int base, BitSet skip, Course[] courses, int lo, int hi) {
+            for (int i = lo; i < hi; i++) {
+                int slot = base + i;
+                out.trips[slot] = -1;
+                int t = trips[i];
+                int row = rows[i];
+                if ((skip != null && skip.get(t)) || !isSegmentAt(t, row, time)) continue;
+
+                Stop s1 = stop(table.stopIndex(t, row));
+                Stop s2 = stop(table.stopIndex(t, row + 1));
+                if (s1 == null || s2 == null) continue;
+
+                int time1 = table.arrival(t, row);
+                int time2 = table.arrival(t, row + 1);
+                double progress = time2 == time1 ? 0 : (double) (time - time1) / (time2 - time1);
+
+                Course course = courses != null ? courses[t] : null;
+                if (course != null) {
+                    int k = row - table.start(t);
+                    float d1 = course.stopDistances[k];
+                    float d2 = course.stopDistances[k + 1];
+                    float distance = (float) (d1 + (d2 - d1) * progress);
+                    int segment = course.track.segmentAt(distance);
+                    out.put(slot, t, routeOfTrip[t],
+                            course.track.lat(segment, distance),
+                            course.track.lon(segment, distance),
+                            course.track.bearing(segment));
+                    continue;
+                }
+                out.put(slot, t, routeOfTrip[t],
+                        s1.getLat() + (s2.getLat() - s1.getLat()) * progress,
+                        s1.getLon() + (s2.getLon() - s1.getLon()) * progress,
+                        bearings[i]);
+            }
+        }
+    }
+
+    private final StopTimeTable table;
+    private final TripSpanIndex spans;
+    private final Stop[] stopByIndex;
+    private final int[] routeOfTrip;
+    private final int[] serviceOfTrip; // null se il feed non ha calendario
+    private final int[] shapeOfTrip;
+    private final IntFunction<List<ShapePoint>> shapePoints;
+
+    // Per ogni trip le fermate proiettate sullo shape, null finché prepareShapes non finisce
+    private volatile Course[] courseOfTrip;
+
+    private final ForkJoinPool pool; // null: sempre su un thread
+
+    private final Lane today = new Lane(0);
+    private final Lane yesterday = new Lane(TimeUtil.SECONDS_PER_DAY);
+    private final Positions positions = new Positions(256);
+
+    /**
+     * @param spans intervalli dei trip, costruiti sulla stessa tabella
+     * @param routeOfTrip per ogni trip della tabella, l'indice in GtfsIds.ROUTES
+     * @param serviceOfTrip per ogni trip l'indice in GtfsIds.SERVICES, o null per
+     *                      considerare tutti i trip sempre attivi
+     * @param shapeOfTrip per ogni trip l'indice in GtfsIds.SHAPES (-1 se non ha shape)
+     * @param shapePoints punti a piena risoluzione per indice in GtfsIds.SHAPES
+     */
+    public VehicleSimulator(TripSpanIndex spans, Stop[] stopByIndex, int[] routeOfTrip, int[] serviceOfTrip,
+                            int[] shapeOfTrip, IntFunction<List<ShapePoint>> shapePoints) {
+        this(spans, stopByIndex, routeOfTrip, serviceOfTrip, shapeOfTrip, shapePoints,
+                ForkJoinPool.getCommonPoolParallelism() > 1 ? ForkJoinPool.commonPool() : null);
+    }
+
+    /**
+     * Come il costruttore precedente, con il pool per i tick paralleli (quello
+     * precedente usa il pool comune, se ha più di un thread)
+     * @param pool pool condiviso, o null per simulare sempre sul thread chiamante
+     */
+    public VehicleSimulator(TripSpanIndex spans, Stop[] stopByIndex, int[] routeOfTrip, int[] serviceOfTrip,
+                            int[] shapeOfTrip, IntFunction<List<ShapePoint>> shapePoints, ForkJoinPool pool) {
+        this.table = spans.table();
+        this.spans = spans;
+        this.stopByIndex = stopByIndex;
+        this.routeOfTrip = routeOfTrip;
+        this.serviceOfTrip = serviceOfTrip;
+        this.shapeOfTrip = shapeOfTrip;
+        this.shapePoints = shapePoints;
+        this.pool = pool;
+    }
+
+    /**
+     * @return la tabella simulata
+     */
+    public StopTimeTable table() {
+        return table;
+    }
+
+    /**
+     * Avanza la simulazione all'orario dato e aggiorna il buffer delle posizioni.
+     * Un trip in viaggio sia per oggi che per ieri compare una volta sola (oggi).
+     * Con molti trip attivi attende il pool dei tick paralleli: non va chiamato dall'EDT.
+     * @param secondOfDay secondi dalla mezzanotte di date
+     * @param activeToday servizi attivi in date
+     * @param activeYesterday servizi attivi il giorno prima
+     * @return il buffer, riusato dai tick successivi
+     */
+    public synchronized Positions tick(LocalDate date, int secondOfDay, BitSet activeToday, BitSet activeYesterday) {
+        today.advance(date, secondOfDay + today.dayOffset, activeToday);
+        yesterday.advance(date.minusDays(1), secondOfDay + yesterday.dayOffset, activeYesterday);
+
+        positions.reserve(today.count + yesterday.count);
+        today.write(secondOfDay + today.dayOffset, positions, 0, null);
+        yesterday.write(secondOfDay + yesterday.dayOffset, positions, today.count, today.members);
+        positions.compact(today.count + yesterday.count);
+        return positions;
+    }
+
+    /**
+     * Esegue work su [0, n): in parallelo sul pool se n è abbastanza grande
+     */
+    private void forEachSlice(int n, SliceWork work) {
+        if (pool == null || n < PARALLEL_THRESHOLD) {
+            work.run(0, n);
+        } else {
+            pool.invoke(new SliceTask(work, 0, n));
+        }
+    }
+
+    /**
+     * Come tick, ma restituisce una copia delle posizioni che non cambia più e si
+     * può passare ad altri thread (ad esempio all'EDT per il disegno)
+     */
+    public synchronized Positions snapshot(LocalDate date, int secondOfDay, BitSet activeToday, BitSet activeYesterday) {
+        return tick(date, secondOfDay, activeToday, activeYesterday).copy();
+    }
+
+    private boolean isRunning(int t, BitSet active) {
+        if (serviceOfTrip == null) {
+            return true;
+        }
+        int service = t < serviceOfTrip.length ? serviceOfTrip[t] : -1;
+        return service >= 0 && active.get(service);
+    }
+
+    private boolean isSegmentAt(int t, int row, int time) {
+        if (row + 1 >= table.end(t)) {
+            return false;
+        }
+        int time1 = table.arrival(t, row);
+        int time2 = table.arrival(t, row + 1);
+        return time1 >= 0 && time2 >= 0 && time1 <= time && time2 >= time;
+    }
+
+    /**
+     * Proietta sugli shape le fermate dei trip dei servizi dati, sostituendo le
+     * proiezioni precedenti: restano in memoria solo i percorsi degli shape che
+     * hanno corse in servizio. Le coppie (shape, pattern) uguali si calcolano una
+     * volta sola. Lento (legge gli shape): va chiamato fuori dall'EDT, i tick
+     * intanto usano la linea retta, come per i trip fuori dai servizi dati.
+     * @param activeServices servizi da preparare, o null per tutti i trip
+     */
+    public void prepareShapes(BitSet activeServices) {
+        Map<Integer, ShapeTrack> tracks = new HashMap<>();
+        Map<Long, Course> courses = new HashMap<>();
+        Course[] result = new Course[table.tripCount()];
+        for (int i = 0; i < spans.size(); i++) {
+            int t = spans.trip(i);
+            int shape = t < shapeOfTrip.length ? shapeOfTrip[t] : -1;
+            int pattern = table.pattern(t);
+            if (shape < 0 || pattern < 0 || (activeServices != null && !isRunning(t, activeServices))) continue;
+            result[t] = courses.computeIfAbsent(((long) shape << 32) | pattern,
+                    key -> project(tracks, shape, pattern));
+        }
+        courseOfTrip = result;
+    }
+
+    private Course project(Map<Integer, ShapeTrack> tracks, int shape, int pattern) {
+        ShapeTrack track = tracks.computeIfAbsent(shape, s -> ShapeTrack.of(shapePoints.apply(s)));
+        if (track == null) {
+            return null;
+        }
+        int[] stops = table.patternStops(pattern);
+        double[] lats = new double[stops.length];
+        double[] lons = new double[stops.length];
+        for (int i = 0; i < stops.length; i++) {
+            Stop stop = stop(stops[i]);
+            if (stop == null) {
+                return null;
+            }
+            lats[i] = stop.getLat();
+            lons[i] = stop.getLon();
+        }
+        return new Course(track, track.project(lats, lons));
+    }
+
+    private Stop stop(int index) {
+        return index >= 0 && index < stopByIndex.length ? stopByIndex[index] : null;
+    }
+
+    /**
+     * Direzione del tratto (row, row + 1), calcolata solo quando il cursore cambia tratto
+     */
+    private float segmentBearing(int t, int row) {
+        if (row + 1 >= table.end(t)) {
+            return -1f;
+        }
+        Stop s1 = stop(table.stopIndex(t, row));
+        Stop s2 = stop(table.stopIndex(t, row + 1));
+        if (s1 == null || s2 == null) {
+            return -1f;
+        }
+        return ShapeTrack.bearing(s1.getLat(), s1.getLon(), s2.getLat(), s2.getLon());
+    }
+}
@@ -0,0 +1,143 @@
+package it.damose.controller;
+
+import it.damose.data.GtfsDataset;
+import it.damose.data.GtfsLoadPipeline;
+import it.damose.data.GtfsSnapshot;
+import it.damose.data.ShapeLoader;
+import it.damose.data.StopTimeTable;
+import it.damose.data.TripSpanIndex;
+import it.damose.model.Stop;
+import it.damose.model.Trip;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Misura il tick della simulazione dei veicoli al variare del numero di thread e
+ * della dimensione dell'orario (frazioni dei trip del feed, tutti considerati in
+ * servizio: il carico massimo). Simula l'ora di punta, dalle 8:00, a un tick al secondo.
+ * Uso: java it.damose.controller.VehicleSimulatorBenchmark [maxThread] [tick]
+ * Verifica anche che ogni configurazione produca esattamente le stesse posizioni.
+ * Lo speedup per numero di core va misurato su una macchina multi-core: con un
+ * solo core disponibile i thread in più non possono che costare.
+ */
+public class VehicleSimulatorBenchmark {
+
+    private static final int RUSH_HOUR = 8 * 3600;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        int maxWorkers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+
+        List<Integer> workerCounts = new ArrayList<>();
+        for (int w = 1; w < maxWorkers; w *= 2) {
+            workerCounts.add(w);
+        }
+        workerCounts.add(maxWorkers);
+
+        GtfsDataset data = GtfsSnapshot.load();
+        if (data == null) {
+            data = GtfsLoadPipeline.load();
+        }
+        List<Trip> trips = data.getTrips();
+        Stop[] stopByIndex = new Stop[0];
+        for (Stop stop : data.getStops()) {
+            if (stop.getIndex() >= stopByIndex.length) {
+                stopByIndex = Arrays.copyOf(stopByIndex, Math.max(stop.getIndex() + 1, stopByIndex.length * 2));
+            }
+            stopByIndex[stop.getIndex()] = stop;
+        }
+        int[] routeOfTrip = new int[trips.size()];
+        int[] shapeOfTrip = new int[trips.size()];
+        for (int i = 0; i < trips.size(); i++) {
+            routeOfTrip[i] = trips.get(i).getRouteIndex();
+            shapeOfTrip[i] = trips.get(i).getShapeIndex();
+        }
+
+        System.out.println("========================================");
+        System.out.println("BENCHMARK SIMULAZIONE VEICOLI (core disponibili: "
+                + Runtime.getRuntime().availableProcessors() + ")");
+        if (Runtime.getRuntime().availableProcessors() == 1) {
+            System.out.println("ATTENZIONE: un solo core, lo speedup per numero di thread non è misurabile");
+        }
+        System.out.println("trip      veicoli   thread   mediana us/tick   speedup   risultato");
+
+        for (int fraction : new int[]{4, 2, 1}) {
+            // Un trip ogni fraction, così la distribuzione degli orari resta quella del feed
+            BitSet keep = new BitSet(trips.size());
+            for (int t = 0; t < trips.size(); t += fraction) {
+                keep.set(t);
+            }
+            StopTimeTable table = data.getStopTimes().retainTrips(keep);
+            TripSpanIndex spans = TripSpanIndex.build(table);
+
+            long reference = 0;
+            double baseline = 0;
+            for (int workers : workerCounts) {
+                ForkJoinPool pool = workers > 1 ? new ForkJoinPool(workers) : null;
+                try {
+                    VehicleSimulator simulator = new VehicleSimulator(spans, stopByIndex, routeOfTrip, null,
+                            shapeOfTrip, ShapeLoader::getPoints, pool);
+                    simulator.prepareShapes(null);
+
+                    long checksum = checksum(simulator, ticks); // anche riscaldamento
+                    long[] times = new long[RUNS];
+                    for (int r = 0; r < RUNS; r++) {
+                        long start = System.nanoTime();
+                        run(simulator, ticks);
+                        times[r] = System.nanoTime() - start;
+                    }
+                    int vehicles = simulator.tick(LocalDate.now(), RUSH_HOUR, null, null).size();
+                    Arrays.sort(times);
+                    double median = times[RUNS / 2] / 1000.0 / ticks;
+                    if (baseline == 0) {
+                        baseline = median;
+                        reference = checksum;
+                    }
+
+                    System.out.printf("%7d   %7d   %6d   %15.1f   %7.2fx   %s%n",
+                            spans.size(), vehicles, workers, median, baseline / median,
+                            checksum == reference ? "identico" : "DIVERSO!");
+                } finally {
+                    if (pool != null) {
+                        pool.shutdown();
+                    }
+                }
+            }
+        }
+        System.out.println("========================================");
+    }
+
+    /**
+     * Simula ticks secondi dall'ora di punta (ripartendo da capo, l'orologio torna indietro)
+     */
+    private static void run(VehicleSimulator simulator, int ticks) {
+        LocalDate today = LocalDate.now();
+        for (int s = 0; s < ticks; s++) {
+            simulator.tick(today, RUSH_HOUR + s, null, null);
+        }
+    }
+
+    /**
+     * Come run, calcolando l'impronta delle posizioni di tutti i tick
+     */
+    private static long checksum(VehicleSimulator simulator, int ticks) {
+        LocalDate today = LocalDate.now();
+        long h = 0;
+        for (int s = 0; s < ticks; s++) {
+            VehicleSimulator.Positions positions = simulator.tick(today, RUSH_HOUR + s, null, null);
+            for (int i = 0; i < positions.size(); i++) {
+                h = h * 31 + positions.trip(i);
+                h = h * 31 + Double.hashCode(positions.lat(i));
+                h = h * 31 + Double.hashCode(positions.lon(i));
+                h = h * 31 + Float.hashCode(positions.bearing(i));
+            }
+        }
+        return h;
+    }
+}
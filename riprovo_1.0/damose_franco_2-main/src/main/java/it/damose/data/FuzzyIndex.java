@@ -0,0 +1,294 @@
+package it.damose.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ricerca tollerante agli errori di battitura su chiavi già piegate (SearchText.fold).
+ * Per ogni parola distinta delle chiavi si precalcolano le varianti ottenute togliendo
+ * fino a due lettere (schema "symmetric delete"): due parole a distanza di Levenshtein
+ * k hanno sempre una variante in comune con al più k cancellazioni per parte. Una
+ * ricerca genera le varianti della sola query, le cerca per hash in un array ordinato
+ * e verifica la distanza vera solo sui pochi candidati, senza confrontare ogni nome.
+ * Ogni parola ha poi la lista (CSR) delle chiavi che la contengono. Immutabile.
+ */
+public final class FuzzyIndex {
+
+    private static final int MAX_EDITS = 2;
+
+    private final char[][] terms;
+
+    // Hash della variante nei 32 bit alti, parola nei 32 bassi; ordinato
+    private final long[] deletes;
+
+    // termOffsets[t]..termOffsets[t+1]: chiavi che contengono la parola t
+    private final int[] termOffsets;
+    private final int[] termDocs;
+    private final int[] keyLengths;
+
+    private FuzzyIndex(char[][] terms, long[] deletes, int[] termOffsets, int[] termDocs, int[] keyLengths) {
+        this.terms = terms;
+        this.deletes = deletes;
+        this.termOffsets = termOffsets;
+        this.termDocs = termDocs;
+        this.keyLengths = keyLengths;
+    }
+
+    /**
+     * @param keys le chiavi piegate; i risultati di search sono posizioni in questo array
+     */
+    public static FuzzyIndex build(String[] keys) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[][] termsOf = new int[keys.length][];
+        int[] keyLengths = new int[keys.length];
+        for (int doc = 0; doc < keys.length; doc++) {
+            String[] words = keys[doc].isEmpty() ? new String[0] : keys[doc].split(" ");
+            int[] termIds = new int[words.length];
+            for (int i = 0; i < words.length; i++) {
+                Integer id = ids.get(words[i]);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(words[i], id);
+                }
+                termIds[i] = id;
+            }
+            termsOf[doc] = Arrays.stream(termIds).distinct().toArray();
+            keyLengths[doc] = keys[doc].length();
+        }
+
+        char[][] terms = new char[ids.size()][];
+        for (Map.Entry<String, Integer> e : ids.entrySet()) {
+            terms[e.getValue()] = e.getKey().toCharArray();
+        }
+
+        // Parola -> chiavi: le chiavi sono visitate in ordine, le liste escono ordinate
+        int[] offsets = new int[terms.length + 1];
+        for (int[] termIds : termsOf) {
+            for (int t : termIds) {
+                offsets[t + 1]++;
+            }
+        }
+        for (int t = 0; t < terms.length; t++) {
+            offsets[t + 1] += offsets[t];
+        }
+        int[] docs = new int[offsets[terms.length]];
+        int[] next = Arrays.copyOf(offsets, terms.length);
+        for (int doc = 0; doc < keys.length; doc++) {
+            for (int t : termsOf[doc]) {
+                docs[next[t]++] = doc;
+            }
+        }
+
+        // Varianti per cancellazione di tutte le parole
+        long[] deletes = new long[terms.length * 16];
+        int count = 0;
+        int[] hashes = new int[64];
+        for (int t = 0; t < terms.length; t++) {
+            int n = variants(terms[t], MAX_EDITS, hashes);
+            if (n > hashes.length) {
+                hashes = new int[n];
+                n = variants(terms[t], MAX_EDITS, hashes);
+            }
+            if (count + n > deletes.length) {
+                deletes = Arrays.copyOf(deletes, Math.max(count + n, deletes.length * 2));
+            }
+            for (int i = 0; i < n; i++) {
+                deletes[count++] = ((long) hashes[i] << 32) | t;
+            }
+        }
+        Arrays.sort(deletes, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || deletes[unique - 1] != deletes[i]) {
+                deletes[unique++] = deletes[i];
+            }
+        }
+
+        return new FuzzyIndex(terms, Arrays.copyOf(deletes, unique), offsets, docs, keyLengths);
+    }
+
+    /**
+     * Chiavi che contengono, per ogni parola della query, una parola entro la distanza
+     * ammessa (0 fino a 3 lettere, 1 fino a 5, poi 2). Ordinate per somma delle
+     * distanze, poi per chiave più corta.
+     * @param query query già piegata
+     * @return al più limit posizioni di chiavi
+     */
+    public int[] search(String query, int limit) {
+        if (query.isEmpty()) {
+            return new int[0];
+        }
+
+        // Chiavi candidate ordinate, con la distanza totale accumulata parola per parola
+        int[] docs = null;
+        int[] totals = null;
+        int count = 0;
+        int[] hashes = new int[64];
+        int[] seen = new int[terms.length];
+        int stamp = 0;
+
+        for (String word : query.split(" ")) {
+            char[] w = word.toCharArray();
+            int max = w.length <= 3 ? 0 : w.length <= 5 ? 1 : MAX_EDITS;
+            stamp++;
+
+            int n = variants(w, max, hashes);
+            if (n > hashes.length) {
+                hashes = new int[n];
+                n = variants(w, max, hashes);
+            }
+
+            // doc << 2 | distanza: ordinando, per ogni chiave viene prima la distanza minima
+            int[] hits = new int[16];
+            int hitCount = 0;
+            for (int v = 0; v < n; v++) {
+                for (int i = firstDelete(hashes[v]); i < deletes.length && (int) (deletes[i] >>> 32) == hashes[v]; i++) {
+                    int t = (int) deletes[i];
+                    if (seen[t] == stamp) {
+                        continue;
+                    }
+                    seen[t] = stamp;
+                    int d = distance(w, terms[t], max);
+                    if (d > max) {
+                        continue;
+                    }
+                    int size = termOffsets[t + 1] - termOffsets[t];
+                    if (hitCount + size > hits.length) {
+                        hits = Arrays.copyOf(hits, Math.max(hitCount + size, hits.length * 2));
+                    }
+                    for (int j = termOffsets[t]; j < termOffsets[t + 1]; j++) {
+                        hits[hitCount++] = (termDocs[j] << 2) | d;
+                    }
+                }
+            }
+            Arrays.sort(hits, 0, hitCount);
+
+            if (docs == null) {
+                docs = new int[hitCount];
+                totals = new int[hitCount];
+                for (int i = 0; i < hitCount; i++) {
+                    if (count == 0 || docs[count - 1] != hits[i] >>> 2) {
+                        docs[count] = hits[i] >>> 2;
+                        totals[count++] = hits[i] & 3;
+                    }
+                }
+            } else {
+                // Intersezione con le chiavi trovate dalle parole precedenti
+                int kept = 0;
+                int j = 0;
+                for (int i = 0; i < count && j < hitCount; i++) {
+                    while (j < hitCount && hits[j] >>> 2 < docs[i]) {
+                        j++;
+                    }
+                    if (j < hitCount && hits[j] >>> 2 == docs[i]) {
+                        docs[kept] = docs[i];
+                        totals[kept++] = totals[i] + (hits[j] & 3);
+                    }
+                }
+                count = kept;
+            }
+            if (count == 0) {
+                return new int[0];
+            }
+        }
+
+        // Distanza, lunghezza e chiave nello stesso long
+        long[] ranked = new long[count];
+        for (int i = 0; i < count; i++) {
+            ranked[i] = ((long) totals[i] << 48) | ((long) Math.min(keyLengths[docs[i]], 0xFFFF) << 32) | docs[i];
+        }
+        Arrays.sort(ranked);
+
+        int[] result = new int[Math.min(count, limit)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (int) ranked[i];
+        }
+        return result;
+    }
+
+    private int firstDelete(int hash) {
+        long key = (long) hash << 32;
+        int lo = 0;
+        int hi = deletes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (deletes[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Hash della parola e delle varianti con 1..edits lettere tolte (fino a due)
+     * @return il numero di hash, che può superare out.length: in quel caso out non
+     *         è stato riempito tutto e va ripetuta la chiamata con un array più grande
+     */
+    private static int variants(char[] w, int edits, int[] out) {
+        int n = 0;
+        int len = w.length;
+        if (n < out.length) out[n] = hash(w, -1, -1);
+        n++;
+        if (edits >= 1) {
+            for (int i = 0; i < len; i++) {
+                if (n < out.length) out[n] = hash(w, i, -1);
+                n++;
+            }
+        }
+        if (edits >= 2) {
+            for (int i = 0; i < len; i++) {
+                for (int j = i + 1; j < len; j++) {
+                    if (n < out.length) out[n] = hash(w, i, j);
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    private static int hash(char[] w, int skip1, int skip2) {
+        int h = 0;
+        for (int i = 0; i < w.length; i++) {
+            if (i != skip1 && i != skip2) {
+                h = 31 * h + w[i];
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Distanza di Levenshtein, interrotta appena supera max
+     * @return la distanza, o max + 1 se è maggiore di max
+     */
+    private static int distance(char[] a, char[] b, int max) {
+        if (Math.abs(a.length - b.length) > max) {
+            return max + 1;
+        }
+        int n = b.length;
+        int[] prev = new int[n + 1];
+        int[] cur = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= a.length; i++) {
+            cur[0] = i;
+            int rowMin = i;
+            char ca = a[i - 1];
+            for (int j = 1; j <= n; j++) {
+                int cost = ca == b[j - 1] ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                rowMin = Math.min(rowMin, cur[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = prev;
+            prev = cur;
+            cur = swap;
+        }
+        return Math.min(prev[n], max + 1);
+    }
+}
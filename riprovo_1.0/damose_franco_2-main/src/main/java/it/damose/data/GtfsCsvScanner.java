@@ -0,0 +1,283 @@
+package it.damose.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scanner CSV a livello di byte per i file GTFS.
+ * Lavora direttamente su un ByteBuffer (di solito mappato in memoria) e per ogni
+ * riga registra solo gli offset dei campi: i valori vengono decodificati su richiesta
+ * direttamente in primitivi, senza creare String intermedie.
+ */
+public class GtfsCsvScanner {
+
+    private static final int MAX_FIELDS = 64;
+
+    // Potenze di 10 rappresentabili esattamente come double (fast path di getDouble)
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final ByteBuffer buf;
+    private final int limit;
+    private int pos;
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+    private int lineNumber;
+
+    public GtfsCsvScanner(ByteBuffer buf) {
+        this(buf, buf.position(), buf.limit());
+    }
+
+    /**
+     * Scanner limitato all'intervallo di byte [from, to) del buffer.
+     */
+    public GtfsCsvScanner(ByteBuffer buf, int from, int to) {
+        this.buf = buf;
+        this.pos = from;
+        this.limit = to;
+
+        // Salta l'eventuale BOM UTF-8 all'inizio del file
+        if (from == 0 && to >= 3
+                && buf.get(0) == (byte) 0xEF && buf.get(1) == (byte) 0xBB && buf.get(2) == (byte) 0xBF) {
+            pos = 3;
+        }
+    }
+
+    /**
+     * Avanza alla prossima riga non vuota.
+     * @return false se il buffer è terminato
+     */
+    public boolean nextRecord() {
+        while (pos < limit) {
+            fieldCount = 0;
+            int fieldFrom = pos;
+            boolean inQuotes = false;
+
+            while (pos < limit) {
+                byte b = buf.get(pos);
+                if (b == '"') {
+                    inQuotes = !inQuotes;
+                } else if (!inQuotes) {
+                    if (b == ',') {
+                        addField(fieldFrom, pos);
+                        fieldFrom = pos + 1;
+                    } else if (b == '\n' || b == '\r') {
+                        break;
+                    }
+                }
+                pos++;
+            }
+            addField(fieldFrom, pos);
+
+            // Consuma il terminatore di riga (\n, \r\n oppure \r)
+            if (pos < limit && buf.get(pos) == '\r') pos++;
+            if (pos < limit && buf.get(pos) == '\n') pos++;
+            lineNumber++;
+
+            if (fieldCount == 1 && fieldStart[0] == fieldEnd[0]) {
+                continue; // riga vuota
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Registra un campo togliendo spazi e virgolette esterne.
+     */
+    private void addField(int from, int to) {
+        while (from < to && buf.get(from) == ' ') from++;
+        while (to > from && buf.get(to - 1) == ' ') to--;
+        if (to - from >= 2 && buf.get(from) == '"' && buf.get(to - 1) == '"') {
+            from++;
+            to--;
+        }
+        if (fieldCount < MAX_FIELDS) {
+            fieldStart[fieldCount] = from;
+            fieldEnd[fieldCount] = to;
+        }
+        fieldCount++;
+    }
+
+    /**
+     * Legge l'intestazione del file (da chiamare prima di qualsiasi altra riga).
+     * @return i nomi delle colonne, o un array vuoto se il file è vuoto
+     */
+    public String[] readHeader() {
+        if (!nextRecord()) {
+            return new String[0];
+        }
+        int n = Math.min(fieldCount, MAX_FIELDS);
+        String[] header = new String[n];
+        for (int i = 0; i < n; i++) {
+            header[i] = getString(i);
+        }
+        return header;
+    }
+
+    /**
+     * Cerca una colonna per nome nell'intestazione.
+     * @return l'indice della colonna, o fallback se assente
+     */
+    public static int columnIndex(String[] header, String name, int fallback) {
+        for (int i = 0; i < header.length; i++) {
+            if (header[i].equals(name)) {
+                return i;
+            }
+        }
+        return fallback;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public int lineNumber() {
+        return lineNumber;
+    }
+
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    /**
+     * @return l'offset del primo byte non ancora letto
+     */
+    public int position() {
+        return pos;
+    }
+
+    public int start(int col) {
+        return fieldStart[col];
+    }
+
+    public int end(int col) {
+        return fieldEnd[col];
+    }
+
+    public boolean has(int col) {
+        return col >= 0 && col < fieldCount && col < MAX_FIELDS;
+    }
+
+    public boolean isEmpty(int col) {
+        return !has(col) || fieldStart[col] == fieldEnd[col];
+    }
+
+    /**
+     * Interpreta il campo come intero.
+     * @return il valore, o def se il campo è vuoto o non numerico
+     */
+    public int getInt(int col, int def) {
+        if (isEmpty(col)) return def;
+        int p = fieldStart[col];
+        int end = fieldEnd[col];
+        boolean negative = false;
+        if (buf.get(p) == '-') {
+            negative = true;
+            p++;
+        } else if (buf.get(p) == '+') {
+            p++;
+        }
+        if (p == end) return def;
+
+        int value = 0;
+        for (; p < end; p++) {
+            int d = buf.get(p) - '0';
+            if (d < 0 || d > 9) return def;
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Interpreta il campo come orario GTFS "H:MM:SS" (le ore possono superare 23).
+     * @return i secondi dall'inizio del giorno di servizio, o -1 se il campo non è valido
+     */
+    public int getTimeSeconds(int col) {
+        if (isEmpty(col)) return -1;
+        int p = fieldStart[col];
+        int end = fieldEnd[col];
+
+        int total = 0;
+        int current = 0;
+        int part = 0;
+        int digits = 0;
+        for (; p < end; p++) {
+            byte b = buf.get(p);
+            if (b == ':') {
+                if (digits == 0 || ++part > 2) return -1;
+                total = (total + current) * 60;
+                current = 0;
+                digits = 0;
+            } else {
+                int d = b - '0';
+                if (d < 0 || d > 9) return -1;
+                current = current * 10 + d;
+                digits++;
+            }
+        }
+        if (part != 2 || digits == 0) return -1;
+        return total + current;
+    }
+
+    /**
+     * Interpreta il campo come numero decimale (es. coordinate).
+     * @return il valore, o def se il campo è vuoto o non numerico
+     */
+    public double getDouble(int col, double def) {
+        if (isEmpty(col)) return def;
+        int p = fieldStart[col];
+        int end = fieldEnd[col];
+        boolean negative = false;
+        if (buf.get(p) == '-') {
+            negative = true;
+            p++;
+        } else if (buf.get(p) == '+') {
+            p++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean dot = false;
+        for (; p < end; p++) {
+            byte b = buf.get(p);
+            if (b == '.' && !dot) {
+                dot = true;
+                continue;
+            }
+            int d = b - '0';
+            if (d < 0 || d > 9 || digits >= 18) {
+                // Esponenti o troppe cifre: percorso lento ma corretto
+                try {
+                    return Double.parseDouble(getString(col));
+                } catch (NumberFormatException e) {
+                    return def;
+                }
+            }
+            mantissa = mantissa * 10 + d;
+            digits++;
+            if (dot) decimals++;
+        }
+        if (digits == 0) return def;
+
+        double value = mantissa / POW10[decimals];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Crea una String per il campo: da usare solo fuori dai percorsi caldi.
+     */
+    public String getString(int col) {
+        if (isEmpty(col)) return "";
+        int from = fieldStart[col];
+        int len = fieldEnd[col] - from;
+        byte[] bytes = new byte[len];
+        buf.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,55 @@
+package it.damose.data;
+
+import it.damose.model.Route;
+import it.damose.model.Stop;
+import it.damose.model.Trip;
+
+import java.util.List;
+
+/**
+ * Modello GTFS statico completo e già collegato (trip -> route, fermate -> route),
+ * come prodotto dai loader o letto dallo snapshot binario. Gli shape non ne fanno
+ * parte: vengono letti su richiesta tramite ShapeLoader.
+ */
+public class GtfsDataset {
+
+    private final List<Stop> stops;
+    private final List<Route> routes;
+    private final List<Trip> trips;
+    private final StopTimeTable stopTimes;
+    private final StopRouteIndex stopRoutes;
+
+    public GtfsDataset(List<Stop> stops, List<Route> routes, List<Trip> trips, StopTimeTable stopTimes) {
+        this.stops = stops;
+        this.routes = routes;
+        this.trips = trips;
+        this.stopTimes = stopTimes;
+        this.stopRoutes = StopRouteIndex.build(stops, routes);
+    }
+
+    public List<Stop> getStops() {
+        return stops;
+    }
+
+    public List<Route> getRoutes() {
+        return routes;
+    }
+
+    public List<Trip> getTrips() {
+        return trips;
+    }
+
+    /**
+     * @return la tabella degli stop_times (l'indice di trip è la posizione in getTrips())
+     */
+    public StopTimeTable getStopTimes() {
+        return stopTimes;
+    }
+
+    /**
+     * @return l'adiacenza fermate <-> linee, costruita a collegamento completato
+     */
+    public StopRouteIndex getStopRoutes() {
+        return stopRoutes;
+    }
+}
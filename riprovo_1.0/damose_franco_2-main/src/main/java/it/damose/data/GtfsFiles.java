@@ -0,0 +1,344 @@
+package it.damose.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Accesso ai file del feed GTFS statico.
+ * Se è disponibile lo zip ufficiale dell'agenzia (rome_static_gtfs.zip) i file vengono
+ * letti direttamente dalle sue voci: in streaming con open, oppure con map, che
+ * decomprime la voce una sola volta in un file temporaneo e lo mappa, così il
+ * contenuto resta fuori dall'heap; voci diverse possono essere lette in parallelo.
+ * Altrimenti si usano i file estratti tra le risorse, tramite memory mapping.
+ *
+ * Lo zip viene cercato, in ordine: nel percorso indicato da -Ddamose.gtfs.zip,
+ * nella cartella di lavoro e tra le risorse (data/rome_static_gtfs.zip).
+ */
+public class GtfsFiles {
+
+    public static final String RESOURCE_DIR = "data/rome_static_gtfs/";
+    public static final String ZIP_NAME = "rome_static_gtfs.zip";
+    private static final String ZIP_PROPERTY = "damose.gtfs.zip";
+
+    private static ZipFile zipFile;
+    private static Path zipPath;
+    private static boolean zipChecked;
+
+    // Voci dello zip e risorse di un jar già copiate su disco: una sola copia per
+    // file e per processo
+    private static final Map<String, Path> extracted = new ConcurrentHashMap<>();
+
+    /**
+     * Apre lo zip del feed, se presente (una sola volta; ZipFile è utilizzabile da più thread)
+     * @return lo zip, o null se il feed va letto dalle risorse estratte
+     */
+    private static synchronized ZipFile zip() {
+        if (zipChecked) {
+            return zipFile;
+        }
+        zipChecked = true;
+
+        Path path = findZip();
+        if (path == null) {
+            return null;
+        }
+        try {
+            zipFile = new ZipFile(path.toFile());
+            zipPath = path;
+            System.out.println("GtfsFiles: feed letto direttamente da " + path.toAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("GtfsFiles: impossibile aprire " + path + ", uso le risorse estratte");
+            e.printStackTrace();
+        }
+        return zipFile;
+    }
+
+    private static Path findZip() {
+        String property = System.getProperty(ZIP_PROPERTY);
+        if (property != null && !property.isEmpty()) {
+            Path path = Paths.get(property);
+            if (Files.isRegularFile(path)) {
+                return path;
+            }
+            System.err.println("GtfsFiles: " + property + " non trovato");
+        }
+
+        Path local = Paths.get(ZIP_NAME);
+        if (Files.isRegularFile(local)) {
+            return local;
+        }
+
+        URL url = GtfsFiles.class.getClassLoader().getResource("data/" + ZIP_NAME);
+        if (url != null && "file".equals(url.getProtocol())) {
+            try {
+                return Paths.get(url.toURI());
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Cerca la voce del file nello zip, anche dentro un'eventuale cartella principale
+     */
+    private static ZipEntry entry(ZipFile zip, String fileName) {
+        ZipEntry entry = zip.getEntry(fileName);
+        if (entry != null) {
+            return entry;
+        }
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry e = entries.nextElement();
+            if (!e.isDirectory() && e.getName().endsWith("/" + fileName)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Apre un file GTFS come stream (voce dello zip o risorsa).
+     * @return lo stream, o null se il file non esiste o non è leggibile
+     */
+    public static InputStream open(String fileName) {
+        ZipFile zip = zip();
+        if (zip == null) {
+            return GtfsFiles.class.getClassLoader().getResourceAsStream(RESOURCE_DIR + fileName);
+        }
+        ZipEntry entry = entry(zip, fileName);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return zip.getInputStream(entry);
+        } catch (IOException e) {
+            System.err.println("GtfsFiles: errore lettura di " + fileName + " dallo zip");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Rende disponibile in memoria il contenuto di un file GTFS, mappato in sola
+     * lettura. Le voci dello zip e le risorse dentro un jar vengono prima copiate
+     * (una volta sola) in un file temporaneo.
+     * @param fileName nome del file, es. "stop_times.txt"
+     * @return il buffer, o null se il file non esiste
+     */
+    public static ByteBuffer map(String fileName) throws IOException {
+        ZipFile zip = zip();
+        if (zip != null) {
+            ZipEntry entry = entry(zip, fileName);
+            return entry != null ? map(extracted(zip, entry)) : null;
+        }
+        Path path = resolve(fileName);
+        return path != null ? map(path) : null;
+    }
+
+    /**
+     * @return il file temporaneo con il contenuto decompresso della voce
+     */
+    private static Path extracted(ZipFile zip, ZipEntry entry) throws IOException {
+        try {
+            return extracted.computeIfAbsent("zip:" + entry.getName(), key -> {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    return copyToTemp(in, entry.getName().substring(entry.getName().lastIndexOf('/') + 1));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Mappa in memoria (sola lettura) un file su disco.
+     */
+    public static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File troppo grande per essere mappato: " + path);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Trova il percorso su disco di un file GTFS tra le risorse (non considera lo zip).
+     * Una risorsa dentro un jar viene copiata in un file temporaneo alla prima
+     * richiesta; le successive riusano la stessa copia.
+     * @return il percorso, o null se la risorsa non esiste
+     */
+    public static Path resolve(String fileName) throws IOException {
+        URL url = GtfsFiles.class.getClassLoader().getResource(RESOURCE_DIR + fileName);
+        if (url == null) {
+            return null;
+        }
+
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return Paths.get(url.toURI());
+            } catch (URISyntaxException e) {
+                throw new IOException("Percorso risorsa non valido: " + url, e);
+            }
+        }
+
+        // Risorsa dentro un jar: non si può mappare direttamente
+        try {
+            return extracted.computeIfAbsent(fileName, name -> {
+                try (InputStream in = url.openStream()) {
+                    return copyToTemp(in, name);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Path copyToTemp(InputStream in, String fileName) throws IOException {
+        Path temp = Files.createTempFile("damose_", "_" + fileName);
+        temp.toFile().deleteOnExit();
+        Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+        return temp;
+    }
+
+    /**
+     * Percorso per un file derivato dal feed (es. un indice), accanto alla sorgente:
+     * vicino allo zip, con il suo nome come prefisso, oppure nella cartella delle risorse.
+     * @return il percorso, o null se la sorgente non è una cartella su disco (es. un jar)
+     */
+    public static Path sidecar(String name) {
+        if (zip() != null) {
+            String zipName = zipPath.getFileName().toString();
+            String base = zipName.endsWith(".zip") ? zipName.substring(0, zipName.length() - 4) : zipName;
+            return zipPath.toAbsolutePath().resolveSibling(base + "." + name);
+        }
+        URL url = GtfsFiles.class.getClassLoader().getResource(RESOURCE_DIR);
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return Paths.get(url.toURI()).resolve(name);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Calcola l'impronta di un file GTFS senza leggerne il contenuto, quando possibile:
+     * per le voci di uno zip (feed ufficiale o jar) dimensione e CRC32 salvati nello
+     * zip, per i file su disco dimensione e data di modifica. Solo se lo zip non
+     * riporta il CRC la voce viene letta tutta (in streaming) per calcolarlo.
+     * @return l'impronta, con dimensione -1 se il file non esiste
+     */
+    public static Fingerprint fingerprint(String fileName) throws IOException {
+        ZipFile zip = zip();
+        if (zip != null) {
+            ZipEntry entry = entry(zip, fileName);
+            if (entry == null) {
+                return new Fingerprint(fileName, -1, 0);
+            }
+            if (entry.getSize() >= 0 && entry.getCrc() >= 0) {
+                return new Fingerprint(fileName, entry.getSize(), entry.getCrc());
+            }
+            try (InputStream in = zip.getInputStream(entry)) {
+                return crc(fileName, in);
+            }
+        }
+
+        URL url = GtfsFiles.class.getClassLoader().getResource(RESOURCE_DIR + fileName);
+        if (url == null) {
+            return new Fingerprint(fileName, -1, 0);
+        }
+
+        if ("file".equals(url.getProtocol())) {
+            Path path = resolve(fileName);
+            return new Fingerprint(fileName, Files.size(path), Files.getLastModifiedTime(path).toMillis());
+        }
+
+        URLConnection connection = url.openConnection();
+        if (connection instanceof JarURLConnection jar) {
+            JarEntry entry = jar.getJarEntry();
+            if (entry.getSize() >= 0 && entry.getCrc() >= 0) {
+                return new Fingerprint(fileName, entry.getSize(), entry.getCrc());
+            }
+        }
+        try (InputStream in = url.openStream()) {
+            return crc(fileName, in);
+        }
+    }
+
+    private static Fingerprint crc(String fileName, InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[1 << 16];
+        long size = 0;
+        for (int n; (n = in.read(chunk)) > 0; ) {
+            crc.update(chunk, 0, n);
+            size += n;
+        }
+        return new Fingerprint(fileName, size, crc.getValue());
+    }
+
+    /**
+     * Dimensione e marca di versione di un file (CRC32 della voce zip, o data di
+     * modifica del file su disco), usate per invalidare le cache derivate
+     */
+    public static final class Fingerprint {
+        private final String fileName;
+        private final long size;
+        private final long stamp;
+
+        public Fingerprint(String fileName, long size, long stamp) {
+            this.fileName = fileName;
+            this.size = size;
+            this.stamp = stamp;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getStamp() {
+            return stamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint other)) return false;
+            return fileName.equals(other.fileName) && size == other.size && stamp == other.stamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return fileName.hashCode() * 31 + Long.hashCode(size ^ stamp);
+        }
+    }
+}
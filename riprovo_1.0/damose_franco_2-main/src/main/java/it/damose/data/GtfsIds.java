@@ -0,0 +1,88 @@
+package it.damose.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Dizionari globali degli id GTFS: ogni stop_id, route_id, trip_id, service_id e
+ * shape_id viene associato una sola volta a un intero denso. Il modello e gli indici
+ * conservano solo gli interi; la String (unica per id) si recupera con get() quando
+ * serve mostrarla o confrontarla con dati esterni.
+ * Sicuro tra thread: i loader girano in parallelo e il realtime può aggiungere id nuovi.
+ * Le scritture sono sincronizzate; le letture (indexOf, get, size) usano l'ultima
+ * vista pubblicata del dizionario e non prendono lock.
+ */
+public final class GtfsIds {
+
+    public static final GtfsIds STOPS = new GtfsIds();
+    public static final GtfsIds ROUTES = new GtfsIds();
+    public static final GtfsIds TRIPS = new GtfsIds();
+    public static final GtfsIds SERVICES = new GtfsIds();
+    public static final GtfsIds SHAPES = new GtfsIds();
+
+    private final IdDictionary dictionary = new IdDictionary();
+    private volatile IdDictionary.Snapshot view = dictionary.snapshot();
+
+    private GtfsIds() {
+    }
+
+    /**
+     * @return l'indice dell'id, aggiungendolo se non è ancora presente (-1 se null)
+     */
+    public synchronized int intern(String id) {
+        if (id == null) {
+            return -1;
+        }
+        int index = dictionary.intern(id);
+        publish();
+        return index;
+    }
+
+    /**
+     * @return l'indice dei byte [start, end) del buffer, aggiungendolo se non è ancora presente
+     */
+    public synchronized int intern(ByteBuffer buf, int start, int end) {
+        int index = dictionary.intern(buf, start, end);
+        publish();
+        return index;
+    }
+
+    /**
+     * Aggiunge tutti gli id di un dizionario locale.
+     * @return per ogni indice locale, l'indice globale corrispondente
+     */
+    public synchronized int[] internAll(IdDictionary local) {
+        int[] mapping = new int[local.size()];
+        for (int i = 0; i < mapping.length; i++) {
+            mapping[i] = dictionary.intern(local.get(i));
+        }
+        publish();
+        return mapping;
+    }
+
+    /**
+     * @return l'indice dell'id, o -1 se non presente
+     */
+    public int indexOf(String id) {
+        return id != null ? view.indexOf(id) : -1;
+    }
+
+    /**
+     * @return l'id associato all'indice, o null per -1
+     */
+    public String get(int index) {
+        return index >= 0 ? view.get(index) : null;
+    }
+
+    public int size() {
+        return view.size();
+    }
+
+    /**
+     * Rende visibili ai lettori gli id aggiunti (solo se ce ne sono di nuovi)
+     */
+    private void publish() {
+        if (dictionary.size() != view.size()) {
+            view = dictionary.snapshot();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package it.damose.data;
+
+import it.damose.model.Route;
+import it.damose.model.Stop;
+import it.damose.model.Trip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Caricamento parallelo del feed GTFS statico.
+ * I file indipendenti vengono letti contemporaneamente su un pool limitato di thread;
+ * ogni fase di collegamento parte appena sono pronti i suoi input:
+ *
+ *   stops.txt ─────────────────────────────────────────────┐
+ *   routes.txt ─────────────────────────────┐              │
+ *   trips.txt ───────────┐                  ├─ trip->route ┴─ fermate->route
+ *   stop_times.txt ──────┴─ stop_times->trip┘
+ *
+ * shapes.txt non viene letto qui: gli shape si caricano su richiesta (ShapeIndex).
+ * Alla fine stampa il tempo di ogni fase e il tempo totale.
+ */
+public class GtfsLoadPipeline {
+
+    private static final int MAX_THREADS = 4;
+
+    private final ExecutorService executor;
+    private final List<String> report = new ArrayList<>();
+
+    private GtfsLoadPipeline() {
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "gtfs-loader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Carica e collega il modello dai file di testo GTFS.
+     */
+    public static GtfsDataset load() {
+        GtfsLoadPipeline pipeline = new GtfsLoadPipeline();
+        try {
+            return pipeline.run();
+        } finally {
+            pipeline.executor.shutdown();
+        }
+    }
+
+    private GtfsDataset run() {
+        long start = System.nanoTime();
+
+        // 1. Lettura dei file indipendenti
+        CompletableFuture<List<Stop>> stopsFuture = stage("stops.txt",
+                () -> new ArrayList<>(StopsLoader.loadStopsFromResources().values()));
+        CompletableFuture<List<Route>> routesFuture = stage("routes.txt",
+                () -> new ArrayList<>(RouteLoader.loadRoutesFromResources().values()));
+        CompletableFuture<List<Trip>> tripsFuture = stage("trips.txt",
+                TripLoader::loadTripsFromResources);
+        CompletableFuture<StopTimesLoader.ParsedStopTimes> stopTimesFuture = stage("stop_times.txt",
+                StopTimesLoader::parseStopTimes);
+
+        // 2. Collegamenti, appena gli input sono pronti
+        CompletableFuture<StopTimeTable> tableFuture = stopTimesFuture.thenCombineAsync(tripsFuture,
+                (parsed, trips) -> timed("stop_times -> trip",
+                        () -> StopTimesLoader.linkStopTimes(parsed, trips)), executor);
+
+        CompletableFuture<List<Route>> linkedRoutesFuture = tableFuture.thenCombineAsync(routesFuture,
+                (table, routes) -> timed("trip -> route", () -> {
+                    TripLoader.linkTripsToRoutes(tripsFuture.join(), routes);
+                    return routes;
+                }), executor);
+
+        CompletableFuture<List<Stop>> linkedStopsFuture = linkedRoutesFuture.thenCombineAsync(stopsFuture,
+                (routes, stops) -> timed("fermate -> route", () -> {
+                    StopsLoader.linkStopsToRoutes(stops, routes);
+                    return stops;
+                }), executor);
+
+        GtfsDataset data = new GtfsDataset(linkedStopsFuture.join(), linkedRoutesFuture.join(),
+                tripsFuture.join(), tableFuture.join());
+
+        long total = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("========================================");
+        System.out.println("PIPELINE DI CARICAMENTO GTFS:");
+        synchronized (report) {
+            report.forEach(System.out::println);
+        }
+        System.out.println("Tempo totale: " + total + " ms");
+        System.out.println("========================================");
+
+        return data;
+    }
+
+    private <T> CompletableFuture<T> stage(String name, Supplier<T> task) {
+        return CompletableFuture.supplyAsync(() -> timed(name, task), executor);
+    }
+
+    private <T> T timed(String name, Supplier<T> task) {
+        long start = System.nanoTime();
+        T result = task.get();
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        synchronized (report) {
+            report.add(String.format("  %-20s %6d ms", name, elapsed));
+        }
+        return result;
+    }
+}
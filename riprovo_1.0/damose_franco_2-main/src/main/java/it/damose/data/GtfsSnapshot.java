@@ -0,0 +1,542 @@
+package it.damose.data;
+
+import it.damose.model.Route;
+import it.damose.model.Stop;
+import it.damose.model.Trip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Snapshot binario versionato del modello GTFS già collegato.
+ * Viene scritto dopo il primo caricamento riuscito dai file di testo e, agli avvii
+ * successivi, letto tramite memory mapping al posto del parsing. Contiene le impronte
+ * dei file sorgente (dimensione e CRC32 o data di modifica, vedi GtfsFiles.fingerprint):
+ * se uno cambia lo snapshot viene ignorato.
+ *
+ * Formato (little endian): intestazione, impronte, tabella delle stringhe, poi le
+ * sezioni fermate, linee, trip e stop_times (pattern e scarti orari, in colonne). Tutti gli id e i testi
+ * sono riferimenti alla tabella delle stringhe. Gli shape non sono inclusi: si leggono
+ * su richiesta da shapes.txt (vedi ShapeIndex).
+ */
+public class GtfsSnapshot {
+
+    private static final long MAGIC = 0x50414E534F4D4144L; // "DAMOSNAP"
+    private static final int VERSION = 4;
+
+    private static final Path SNAPSHOT_FILE = Paths.get("gtfs_snapshot.bin");
+
+    private static final String[] SOURCE_FILES = {
+            "stops.txt", "routes.txt", "trips.txt", "stop_times.txt"
+    };
+
+    /**
+     * Legge lo snapshot se esiste ed è ancora valido per i file sorgente attuali.
+     * @return il modello collegato, o null se lo snapshot manca, è obsoleto o illeggibile
+     */
+    public static GtfsDataset load() {
+        try {
+            ByteBuffer buf = open();
+            if (buf == null) {
+                return null;
+            }
+            String[] strings = readStrings(buf);
+
+            List<Stop> stops = readStops(buf, strings);
+            List<Route> routes = readRoutes(buf, strings);
+            List<Trip> trips = readTrips(buf, strings);
+            StopTimeTable stopTimes = readStopTimes(buf, strings, trips);
+            TimetableRef timetable = new TimetableRef(stopTimes);
+            for (int i = 0; i < trips.size(); i++) {
+                trips.get(i).attachStopTimes(timetable, i);
+            }
+
+            // Ricollega i trip alle route nello stesso ordine del caricamento originale
+            int[][] routeTrips = readRouteTrips(buf, routes.size());
+            for (int r = 0; r < routes.size(); r++) {
+                for (int t : routeTrips[r]) {
+                    routes.get(r).addTrip(trips.get(t));
+                }
+            }
+
+            return new GtfsDataset(stops, routes, trips, stopTimes);
+
+        } catch (Exception e) {
+            System.err.println("GtfsSnapshot: snapshot non leggibile, verrà rigenerato (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Rilegge dallo snapshot solo la tabella completa degli stop_times, senza
+     * collegarla ai trip (come StopTimesLoader.buildStopTimes): costa molto meno di
+     * rileggere stop_times.txt, per esempio per spostare la finestra di servizio.
+     * @param trips i trip già caricati, nello stesso ordine dello snapshot
+     * @return la tabella, o null se lo snapshot manca, è obsoleto o non corrisponde ai trip
+     */
+    public static StopTimeTable loadStopTimes(List<Trip> trips) {
+        try {
+            ByteBuffer buf = open();
+            if (buf == null) {
+                return null;
+            }
+            String[] strings = readStrings(buf);
+
+            skipStops(buf);
+            int routeCount = buf.getInt();
+            buf.position(buf.position() + routeCount * ROUTE_BYTES);
+            int tripCount = buf.getInt();
+            if (tripCount != trips.size()) {
+                return null;
+            }
+            buf.position(buf.position() + tripCount * TRIP_BYTES);
+            return readStopTimes(buf, strings, trips);
+
+        } catch (Exception e) {
+            System.err.println("GtfsSnapshot: stop_times non leggibili dallo snapshot (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Mappa lo snapshot e ne verifica formato e impronte dei file sorgente.
+     * @return il buffer posizionato dopo le impronte, o null se lo snapshot manca o è obsoleto
+     */
+    private static ByteBuffer open() throws IOException {
+        if (!Files.exists(SNAPSHOT_FILE)) {
+            return null;
+        }
+        ByteBuffer buf = GtfsFiles.map(SNAPSHOT_FILE).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.getLong() != MAGIC || buf.getInt() != VERSION) {
+            System.out.println("GtfsSnapshot: formato non compatibile, verrà rigenerato");
+            return null;
+        }
+
+        int fingerprintCount = buf.getInt();
+        for (int i = 0; i < fingerprintCount; i++) {
+            GtfsFiles.Fingerprint stored = new GtfsFiles.Fingerprint(readRaw(buf), buf.getLong(), buf.getLong());
+            if (!stored.equals(GtfsFiles.fingerprint(stored.getFileName()))) {
+                System.out.println("GtfsSnapshot: " + stored.getFileName() + " è cambiato, verrà rigenerato");
+                return null;
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Scrive lo snapshot del modello su un file temporaneo e lo sostituisce
+     * atomicamente a quello esistente.
+     */
+    public static void save(GtfsDataset data) {
+        Path temp = Paths.get(SNAPSHOT_FILE + ".tmp");
+        try {
+            List<GtfsFiles.Fingerprint> fingerprints = new ArrayList<>();
+            for (String name : SOURCE_FILES) {
+                fingerprints.add(GtfsFiles.fingerprint(name));
+            }
+
+            StringTable strings = new StringTable();
+            collectStrings(data, strings);
+
+            try (Writer out = new Writer(FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                out.putLong(MAGIC);
+                out.putInt(VERSION);
+
+                out.putInt(fingerprints.size());
+                for (GtfsFiles.Fingerprint f : fingerprints) {
+                    out.putRaw(f.getFileName());
+                    out.putLong(f.getSize());
+                    out.putLong(f.getStamp());
+                }
+
+                out.putInt(strings.size());
+                for (String s : strings.values()) {
+                    out.putRaw(s);
+                }
+
+                writeStops(out, strings, data.getStops());
+                writeRoutes(out, strings, data.getRoutes());
+                writeTrips(out, strings, data.getTrips());
+                writeStopTimes(out, strings, data.getStopTimes());
+                writeRouteTrips(out, data.getRoutes(), data.getTrips());
+            }
+
+            Files.move(temp, SNAPSHOT_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("GtfsSnapshot: snapshot salvato in " + SNAPSHOT_FILE.toAbsolutePath());
+
+        } catch (Exception e) {
+            System.err.println("GtfsSnapshot: errore durante il salvataggio dello snapshot");
+            e.printStackTrace();
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Il file temporaneo verrà sovrascritto al prossimo salvataggio
+            }
+        }
+    }
+
+    // === SCRITTURA ===
+
+    private static void collectStrings(GtfsDataset data, StringTable strings) {
+        for (Stop s : data.getStops()) {
+            strings.add(s.getId());
+            strings.add(s.getName());
+            for (String routeId : s.getRouteIds()) strings.add(routeId);
+        }
+        for (Route r : data.getRoutes()) {
+            strings.add(r.getId());
+            strings.add(r.getAgencyId());
+            strings.add(r.getShortName());
+            strings.add(r.getLongName());
+            strings.add(r.getRouteUrl());
+            strings.add(r.getRouteColor());
+            strings.add(r.getRouteTextColor());
+        }
+        for (Trip t : data.getTrips()) {
+            strings.add(t.getRouteId());
+            strings.add(t.getServiceId());
+            strings.add(t.getId());
+            strings.add(t.getTripHeadsign());
+            strings.add(t.getTripShortName());
+            strings.add(t.getBlockId());
+            strings.add(t.getShapeId());
+        }
+        int stopIdCount = stopIdCount(data.getStopTimes());
+        for (int i = 0; i < stopIdCount; i++) {
+            strings.add(GtfsIds.STOPS.get(i));
+        }
+    }
+
+    private static void writeStops(Writer out, StringTable strings, List<Stop> stops) throws IOException {
+        out.putInt(stops.size());
+        for (Stop s : stops) {
+            out.putInt(strings.ref(s.getId()));
+            out.putInt(strings.ref(s.getName()));
+            out.putDouble(s.getLat());
+            out.putDouble(s.getLon());
+            out.putInt(s.getRouteIds().size());
+            for (String routeId : s.getRouteIds()) {
+                out.putInt(strings.ref(routeId));
+            }
+        }
+    }
+
+    private static void writeRoutes(Writer out, StringTable strings, List<Route> routes) throws IOException {
+        out.putInt(routes.size());
+        for (Route r : routes) {
+            out.putInt(strings.ref(r.getId()));
+            out.putInt(strings.ref(r.getAgencyId()));
+            out.putInt(strings.ref(r.getShortName()));
+            out.putInt(strings.ref(r.getLongName()));
+            out.putInt(r.getRouteType());
+            out.putInt(strings.ref(r.getRouteUrl()));
+            out.putInt(strings.ref(r.getRouteColor()));
+            out.putInt(strings.ref(r.getRouteTextColor()));
+        }
+    }
+
+    private static void writeTrips(Writer out, StringTable strings, List<Trip> trips) throws IOException {
+        out.putInt(trips.size());
+        for (Trip t : trips) {
+            out.putInt(strings.ref(t.getRouteId()));
+            out.putInt(strings.ref(t.getServiceId()));
+            out.putInt(strings.ref(t.getId()));
+            out.putInt(strings.ref(t.getTripHeadsign()));
+            out.putInt(strings.ref(t.getTripShortName()));
+            out.putInt(t.getDirectionId());
+            out.putInt(strings.ref(t.getBlockId()));
+            out.putInt(strings.ref(t.getShapeId()));
+            out.putInt(t.getWheelchairAccessible());
+            out.putInt(t.getExceptional());
+        }
+    }
+
+    private static void writeStopTimes(Writer out, StringTable strings, StopTimeTable table) throws IOException {
+        // Gli indici delle fermate valgono solo in questo processo: si salvano anche gli id
+        int stopIdCount = stopIdCount(table);
+        out.putInt(stopIdCount);
+        for (int i = 0; i < stopIdCount; i++) {
+            out.putInt(strings.ref(GtfsIds.STOPS.get(i)));
+        }
+
+        putInts(out, table.patternOffsetsColumn());
+        putInts(out, table.patternStopsColumn());
+        putInts(out, table.patternSequenceColumn());
+
+        putInts(out, table.tripPatternColumn());
+        putInts(out, table.tripStartColumn());
+        putInts(out, table.tripOffsetsColumn());
+        putChars(out, table.arrivalOffsetColumn());
+        putChars(out, table.departureOffsetColumn());
+    }
+
+    private static void putInts(Writer out, int[] values) throws IOException {
+        out.putInt(values.length);
+        for (int v : values) out.putInt(v);
+    }
+
+    private static void putChars(Writer out, char[] values) throws IOException {
+        out.putInt(values.length);
+        for (char v : values) out.putChar(v);
+    }
+
+    private static int stopIdCount(StopTimeTable table) {
+        int max = -1;
+        for (int stop : table.patternStopsColumn()) {
+            max = Math.max(max, stop);
+        }
+        return max + 1;
+    }
+
+    private static void writeRouteTrips(Writer out, List<Route> routes, List<Trip> trips) throws IOException {
+        Map<Trip, Integer> tripIndex = new IdentityHashMap<>();
+        for (int i = 0; i < trips.size(); i++) {
+            tripIndex.put(trips.get(i), i);
+        }
+        for (Route r : routes) {
+            out.putInt(r.getTrips().size());
+            for (Trip t : r.getTrips()) {
+                out.putInt(tripIndex.get(t));
+            }
+        }
+    }
+
+    // === LETTURA ===
+
+    // Dimensione fissa di una linea e di un trip: solo riferimenti e interi
+    private static final int ROUTE_BYTES = 8 * Integer.BYTES;
+    private static final int TRIP_BYTES = 10 * Integer.BYTES;
+
+    private static String[] readStrings(ByteBuffer buf) {
+        String[] strings = new String[buf.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readRaw(buf);
+        }
+        return strings;
+    }
+
+    private static void skipStops(ByteBuffer buf) {
+        int n = buf.getInt();
+        for (int i = 0; i < n; i++) {
+            buf.position(buf.position() + 2 * Integer.BYTES + 2 * Double.BYTES);
+            int routeCount = buf.getInt();
+            buf.position(buf.position() + routeCount * Integer.BYTES);
+        }
+    }
+
+    private static List<Stop> readStops(ByteBuffer buf, String[] strings) {
+        int n = buf.getInt();
+        List<Stop> stops = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Stop stop = new Stop(strings[buf.getInt()], strings[buf.getInt()], buf.getDouble(), buf.getDouble());
+            int routeCount = buf.getInt();
+            for (int r = 0; r < routeCount; r++) {
+                stop.addRoute(strings[buf.getInt()]);
+            }
+            stops.add(stop);
+        }
+        return stops;
+    }
+
+    private static List<Route> readRoutes(ByteBuffer buf, String[] strings) {
+        int n = buf.getInt();
+        List<Route> routes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String id = strings[buf.getInt()];
+            String agencyId = strings[buf.getInt()];
+            String shortName = strings[buf.getInt()];
+            String longName = strings[buf.getInt()];
+            int routeType = buf.getInt();
+            String routeUrl = strings[buf.getInt()];
+            String routeColor = strings[buf.getInt()];
+            String routeTextColor = strings[buf.getInt()];
+            routes.add(new Route(id, agencyId, shortName, longName, routeType, routeUrl, routeColor, routeTextColor));
+        }
+        return routes;
+    }
+
+    private static List<Trip> readTrips(ByteBuffer buf, String[] strings) {
+        int n = buf.getInt();
+        List<Trip> trips = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String routeId = strings[buf.getInt()];
+            String serviceId = strings[buf.getInt()];
+            String id = strings[buf.getInt()];
+            String headsign = strings[buf.getInt()];
+            String shortName = strings[buf.getInt()];
+            int directionId = buf.getInt();
+            String blockId = strings[buf.getInt()];
+            String shapeId = strings[buf.getInt()];
+            int wheelchairAccessible = buf.getInt();
+            int exceptional = buf.getInt();
+            trips.add(new Trip(routeId, serviceId, id, headsign, shortName, directionId,
+                    blockId, shapeId, wheelchairAccessible, exceptional));
+        }
+        return trips;
+    }
+
+    private static StopTimeTable readStopTimes(ByteBuffer buf, String[] strings, List<Trip> trips) {
+        int stopIdCount = buf.getInt();
+        int[] stopMapping = new int[stopIdCount];
+        boolean identity = true;
+        for (int i = 0; i < stopIdCount; i++) {
+            stopMapping[i] = GtfsIds.STOPS.intern(strings[buf.getInt()]);
+            identity &= stopMapping[i] == i;
+        }
+
+        int[] patternOffsets = readInts(buf, buf.getInt());
+        int[] patternStops = readInts(buf, buf.getInt());
+        int[] patternSequence = readInts(buf, buf.getInt());
+        int[] tripPattern = readInts(buf, buf.getInt());
+        int[] tripStart = readInts(buf, buf.getInt());
+        int[] tripOffsets = readInts(buf, buf.getInt());
+        char[] arrivalOffset = readChars(buf, buf.getInt());
+        char[] departureOffset = readChars(buf, buf.getInt());
+
+        if (!identity) {
+            for (int i = 0; i < patternStops.length; i++) {
+                patternStops[i] = stopMapping[patternStops[i]];
+            }
+        }
+
+        int[] tripIds = new int[trips.size()];
+        for (int i = 0; i < tripIds.length; i++) {
+            tripIds[i] = trips.get(i).getIndex();
+        }
+
+        return new StopTimeTable(tripIds, tripPattern, tripStart, tripOffsets,
+                arrivalOffset, departureOffset, patternOffsets, patternStops, patternSequence);
+    }
+
+    private static int[][] readRouteTrips(ByteBuffer buf, int routeCount) {
+        int[][] routeTrips = new int[routeCount][];
+        for (int r = 0; r < routeCount; r++) {
+            routeTrips[r] = readInts(buf, buf.getInt());
+        }
+        return routeTrips;
+    }
+
+    private static int[] readInts(ByteBuffer buf, int n) {
+        int[] values = new int[n];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + n * Integer.BYTES);
+        return values;
+    }
+
+    private static char[] readChars(ByteBuffer buf, int n) {
+        char[] values = new char[n];
+        buf.asCharBuffer().get(values);
+        buf.position(buf.position() + n * Character.BYTES);
+        return values;
+    }
+
+    private static String readRaw(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // === SUPPORTO ===
+
+    /**
+     * Tabella delle stringhe distinte: ogni testo viene scritto una sola volta
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> refs = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        void add(String s) {
+            String value = s != null ? s : "";
+            if (!refs.containsKey(value)) {
+                refs.put(value, values.size());
+                values.add(value);
+            }
+        }
+
+        int ref(String s) {
+            return refs.get(s != null ? s : "");
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        List<String> values() {
+            return values;
+        }
+    }
+
+    /**
+     * Scrittura bufferizzata little endian su un FileChannel
+     */
+    private static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(v);
+        }
+
+        void putChar(char v) throws IOException {
+            ensure(Character.BYTES);
+            buffer.putChar(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(v);
+        }
+
+        void putDouble(double v) throws IOException {
+            ensure(Double.BYTES);
+            buffer.putDouble(v);
+        }
+
+        void putRaw(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            for (int off = 0; off < bytes.length; ) {
+                ensure(1);
+                int len = Math.min(buffer.remaining(), bytes.length - off);
+                buffer.put(bytes, off, len);
+                off += len;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.force(false);
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package it.damose.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Dizionario di id GTFS: associa a ogni id un indice intero denso e una sola
+ * istanza String condivisa. Le ricerche accettano direttamente i byte di un
+ * campo CSV, così il parser non deve creare String per gli id già noti.
+ */
+public class IdDictionary {
+
+    private byte[][] keys = new byte[64][];
+    private String[] values = new String[64];
+    private int[] hashes = new int[64];
+    private int[] table = new int[128]; // slot -> indice + 1 (0 = vuoto)
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return l'id associato all'indice
+     */
+    public String get(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return gli id in ordine di indice
+     */
+    public String[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * @return l'indice dell'id, o -1 se non presente
+     */
+    public int indexOf(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        return find(ByteBuffer.wrap(bytes), 0, bytes.length, hash(bytes));
+    }
+
+    /**
+     * @return l'indice dei byte [start, end) del buffer, o -1 se non presente
+     */
+    public int indexOf(ByteBuffer buf, int start, int end) {
+        return find(buf, start, end, hash(buf, start, end));
+    }
+
+    /**
+     * Aggiunge l'id se non è già presente.
+     * @return l'indice dell'id
+     */
+    public int intern(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        int h = hash(bytes);
+        int index = find(ByteBuffer.wrap(bytes), 0, bytes.length, h);
+        return index >= 0 ? index : add(bytes, id, h);
+    }
+
+    /**
+     * Aggiunge l'id contenuto nei byte [start, end) del buffer se non è già presente.
+     * @return l'indice dell'id
+     */
+    public int intern(ByteBuffer buf, int start, int end) {
+        int h = hash(buf, start, end);
+        int index = find(buf, start, end, h);
+        if (index >= 0) {
+            return index;
+        }
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        return add(bytes, new String(bytes, StandardCharsets.UTF_8), h);
+    }
+
+    /**
+     * Vista in sola lettura del contenuto attuale, leggibile da altri thread senza
+     * lock mentre il dizionario continua a crescere (gli array non vengono mai
+     * riscritti nelle posizioni già occupate, solo estesi o sostituiti)
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(keys, values, hashes, table, size);
+    }
+
+    public static final class Snapshot {
+        private final byte[][] keys;
+        private final String[] values;
+        private final int[] hashes;
+        private final int[] table;
+        private final int size;
+
+        private Snapshot(byte[][] keys, String[] values, int[] hashes, int[] table, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.hashes = hashes;
+            this.table = table;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return l'id associato all'indice (che deve essere < size())
+         */
+        public String get(int index) {
+            return values[index];
+        }
+
+        /**
+         * @return l'indice dell'id, o -1 se non presente nella vista
+         */
+        public int indexOf(String id) {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            int h = hash(bytes);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            int mask = table.length - 1;
+            for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+                int entry = table[slot];
+                if (entry == 0) {
+                    return -1;
+                }
+                // Gli indici oltre size sono stati aggiunti dopo la vista: si saltano
+                int index = entry - 1;
+                if (index < size && hashes[index] == h && sameBytes(keys[index], buf, 0, bytes.length)) {
+                    return index;
+                }
+            }
+        }
+    }
+
+    private int find(ByteBuffer buf, int start, int end, int h) {
+        int mask = table.length - 1;
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            int index = entry - 1;
+            if (hashes[index] == h && sameBytes(keys[index], buf, start, end)) {
+                return index;
+            }
+        }
+    }
+
+    private int add(byte[] bytes, String value, int h) {
+        if (size == keys.length) {
+            int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        int index = size++;
+        keys[index] = bytes;
+        values[index] = value;
+        hashes[index] = h;
+
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            insertSlot(index);
+        }
+        return index;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            insertSlot(i);
+        }
+    }
+
+    private void insertSlot(int index) {
+        int mask = table.length - 1;
+        int slot = hashes[index] & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private static boolean sameBytes(byte[] key, ByteBuffer buf, int start, int end) {
+        if (key.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != buf.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes) {
+        int h = 0;
+        for (byte b : bytes) {
+            h = 31 * h + b;
+        }
+        return mix(h);
+    }
+
+    private static int hash(ByteBuffer buf, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + buf.get(i);
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -10,7 +10,7 @@ public class RouteLoader {
     public static Map<String, Route> loadRoutesFromResources() {
         Map<String, Route> routes = new HashMap<>();
 
-        InputStream input = RouteLoader.class.getClassLoader().getResourceAsStream("data/rome_static_gtfs/routes.txt");
+        InputStream input = GtfsFiles.open("routes.txt");
 
         if (input == null) {
             System.err.println("routes.txt non trovato nelle risorse!");
@@ -0,0 +1,203 @@
+package it.damose.data;
+
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Calendario dei servizi GTFS (calendar.txt + calendar_dates.txt).
+ * Dice quali service_id sono attivi in una data di servizio: prima la regola
+ * settimanale con il suo intervallo di validità, poi le eccezioni della singola data
+ * (1 = servizio aggiunto, 2 = servizio rimosso).
+ * I servizi sono indici in GtfsIds.SERVICES.
+ */
+public class ServiceCalendar {
+
+    // Per servizio: giorni attivi (bit 0 = lunedì ... bit 6 = domenica) e validità in epoch day
+    private int[] weekdays = new int[0];
+    private long[] startDay = new long[0];
+    private long[] endDay = new long[0];
+    private final BitSet hasRule = new BitSet();
+
+    // Eccezioni per data (epoch day)
+    private final Map<Long, BitSet> added = new HashMap<>();
+    private final Map<Long, BitSet> removed = new HashMap<>();
+
+    /**
+     * Legge calendar.txt e calendar_dates.txt dal feed (entrambi facoltativi)
+     */
+    public static ServiceCalendar load() {
+        ServiceCalendar calendar = new ServiceCalendar();
+        try {
+            ByteBuffer rules = GtfsFiles.map("calendar.txt");
+            if (rules != null) {
+                calendar.readRules(rules);
+            }
+            ByteBuffer dates = GtfsFiles.map("calendar_dates.txt");
+            if (dates != null) {
+                calendar.readExceptions(dates);
+            }
+        } catch (Exception e) {
+            System.err.println("Errore caricamento calendario dei servizi");
+            e.printStackTrace();
+        }
+
+        if (calendar.isEmpty()) {
+            System.out.println("ServiceCalendar: nessun calendario, tutti i servizi considerati attivi");
+        } else {
+            System.out.println("ServiceCalendar: " + calendar.hasRule.cardinality() + " servizi con regola settimanale, "
+                    + (calendar.added.size() + calendar.removed.size()) + " eccezioni per data");
+        }
+        return calendar;
+    }
+
+    /**
+     * @return true se il feed non ha calendario (in quel caso ogni servizio è attivo)
+     */
+    public boolean isEmpty() {
+        return hasRule.isEmpty() && added.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * @return true se il servizio è attivo nella data di servizio
+     */
+    public boolean isActive(int service, LocalDate date) {
+        if (service < 0) {
+            return false;
+        }
+        long day = date.toEpochDay();
+        BitSet remove = removed.get(day);
+        if (remove != null && remove.get(service)) {
+            return false;
+        }
+        BitSet add = added.get(day);
+        if (add != null && add.get(service)) {
+            return true;
+        }
+        return hasRule.get(service)
+                && day >= startDay[service] && day <= endDay[service]
+                && (weekdays[service] & (1 << (date.getDayOfWeek().getValue() - 1))) != 0;
+    }
+
+    /**
+     * @return i servizi attivi nella data di servizio
+     */
+    public BitSet activeServices(LocalDate date) {
+        long day = date.toEpochDay();
+        int weekdayBit = 1 << (date.getDayOfWeek().getValue() - 1);
+
+        BitSet active = new BitSet();
+        for (int s = hasRule.nextSetBit(0); s >= 0; s = hasRule.nextSetBit(s + 1)) {
+            if (day >= startDay[s] && day <= endDay[s] && (weekdays[s] & weekdayBit) != 0) {
+                active.set(s);
+            }
+        }
+        BitSet add = added.get(day);
+        if (add != null) {
+            active.or(add);
+        }
+        BitSet remove = removed.get(day);
+        if (remove != null) {
+            active.andNot(remove);
+        }
+        return active;
+    }
+
+    /**
+     * @return i servizi attivi in almeno una delle date [first, first + days)
+     */
+    public BitSet activeServices(LocalDate first, int days) {
+        BitSet active = new BitSet();
+        for (int d = 0; d < days; d++) {
+            active.or(activeServices(first.plusDays(d)));
+        }
+        return active;
+    }
+
+    private void readRules(ByteBuffer buffer) {
+        GtfsCsvScanner scanner = new GtfsCsvScanner(buffer);
+        String[] header = scanner.readHeader();
+        int idCol = GtfsCsvScanner.columnIndex(header, "service_id", 0);
+        int[] dayCols = new int[7];
+        String[] dayNames = {"monday", "tuesday", "wednesday", "thursday", "friday", "saturday", "sunday"};
+        for (int d = 0; d < 7; d++) {
+            dayCols[d] = GtfsCsvScanner.columnIndex(header, dayNames[d], d + 1);
+        }
+        int startCol = GtfsCsvScanner.columnIndex(header, "start_date", 8);
+        int endCol = GtfsCsvScanner.columnIndex(header, "end_date", 9);
+
+        while (scanner.nextRecord()) {
+            if (!scanner.has(idCol) || !scanner.has(startCol) || !scanner.has(endCol)) {
+                continue; // Ignora righe malformate
+            }
+            long start = epochDay(scanner.getInt(startCol, -1));
+            long end = epochDay(scanner.getInt(endCol, -1));
+            if (start == Long.MIN_VALUE || end == Long.MIN_VALUE) {
+                continue;
+            }
+
+            int mask = 0;
+            for (int d = 0; d < 7; d++) {
+                if (scanner.getInt(dayCols[d], 0) == 1) {
+                    mask |= 1 << d;
+                }
+            }
+
+            int service = GtfsIds.SERVICES.intern(buffer, scanner.start(idCol), scanner.end(idCol));
+            ensureCapacity(service + 1);
+            weekdays[service] = mask;
+            startDay[service] = start;
+            endDay[service] = end;
+            hasRule.set(service);
+        }
+    }
+
+    private void readExceptions(ByteBuffer buffer) {
+        GtfsCsvScanner scanner = new GtfsCsvScanner(buffer);
+        String[] header = scanner.readHeader();
+        int idCol = GtfsCsvScanner.columnIndex(header, "service_id", 0);
+        int dateCol = GtfsCsvScanner.columnIndex(header, "date", 1);
+        int typeCol = GtfsCsvScanner.columnIndex(header, "exception_type", 2);
+
+        while (scanner.nextRecord()) {
+            if (!scanner.has(idCol) || !scanner.has(dateCol) || !scanner.has(typeCol)) {
+                continue; // Ignora righe malformate
+            }
+            long day = epochDay(scanner.getInt(dateCol, -1));
+            int type = scanner.getInt(typeCol, 0);
+            if (day == Long.MIN_VALUE || (type != 1 && type != 2)) {
+                continue;
+            }
+            int service = GtfsIds.SERVICES.intern(buffer, scanner.start(idCol), scanner.end(idCol));
+            (type == 1 ? added : removed).computeIfAbsent(day, k -> new BitSet()).set(service);
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > weekdays.length) {
+            int capacity = Math.max(size, weekdays.length * 2);
+            weekdays = Arrays.copyOf(weekdays, capacity);
+            startDay = Arrays.copyOf(startDay, capacity);
+            endDay = Arrays.copyOf(endDay, capacity);
+        }
+    }
+
+    /**
+     * Converte una data GTFS (AAAAMMGG) in epoch day
+     * @return l'epoch day, o Long.MIN_VALUE se la data non è valida
+     */
+    private static long epochDay(int yyyymmdd) {
+        if (yyyymmdd <= 0) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return LocalDate.of(yyyymmdd / 10000, yyyymmdd / 100 % 100, yyyymmdd % 100).toEpochDay();
+        } catch (DateTimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package it.damose.data;
+
+import it.damose.model.ShapePath;
+import it.damose.model.ShapePoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indice a offset di byte di shapes.txt: per ogni shape_id registra gli intervalli
+ * di byte delle sue righe (di solito un solo blocco contiguo). Il file resta mappato
+ * in memoria e ogni shape viene decodificato solo quando serve, in forma compatta
+ * (ShapePath), tenendo gli ultimi usati in una cache LRU limitata.
+ *
+ * L'indice viene salvato accanto alla sorgente del feed (shapes.idx, vedi
+ * GtfsFiles.sidecar) e riusato finché l'impronta di shapes.txt non cambia. Il
+ * controllo usa solo dimensione e data di modifica (o il CRC già scritto nello zip):
+ * aprire l'indice non legge il file, che viene poi letto solo shape per shape.
+ */
+public class ShapeIndex {
+
+    private static final String FILE_NAME = "shapes.txt";
+    private static final String INDEX_NAME = "shapes.idx";
+    private static final int MAGIC = 0x44534958; // "DSIX"
+    private static final int VERSION = 3;
+    private static final int CACHE_SIZE = 64;
+
+    private final ByteBuffer buffer;
+    private final int latCol;
+    private final int lonCol;
+    private final int seqCol;
+    private final int distCol;
+
+    // Per indice in GtfsIds.SHAPES: coppie [inizio, fine) dei blocchi di righe
+    private final int[][] ranges;
+    private final int shapeCount;
+
+    private final Map<Integer, ShapePath> cache =
+            new LinkedHashMap<Integer, ShapePath>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, ShapePath> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private ShapeIndex(ByteBuffer buffer, String[] header, int[][] ranges, int shapeCount) {
+        this.buffer = buffer;
+        this.latCol = GtfsCsvScanner.columnIndex(header, "shape_pt_lat", 1);
+        this.lonCol = GtfsCsvScanner.columnIndex(header, "shape_pt_lon", 2);
+        this.seqCol = GtfsCsvScanner.columnIndex(header, "shape_pt_sequence", 3);
+        this.distCol = GtfsCsvScanner.columnIndex(header, "shape_dist_traveled", 4);
+        this.ranges = ranges;
+        this.shapeCount = shapeCount;
+    }
+
+    /**
+     * Apre shapes.txt e ne carica (o costruisce) l'indice.
+     * @return l'indice, o null se shapes.txt non esiste o non è leggibile
+     */
+    public static ShapeIndex open() {
+        try {
+            ByteBuffer buffer = GtfsFiles.map(FILE_NAME);
+            if (buffer == null) {
+                System.err.println("⚠️ shapes.txt non trovato: i percorsi saranno disegnati con le fermate");
+                return null;
+            }
+
+            GtfsCsvScanner scanner = new GtfsCsvScanner(buffer);
+            String[] header = scanner.readHeader();
+
+            GtfsFiles.Fingerprint fingerprint = GtfsFiles.fingerprint(FILE_NAME);
+            Path indexPath = GtfsFiles.sidecar(INDEX_NAME);
+            int[][] ranges = indexPath != null ? readIndex(indexPath, fingerprint) : null;
+            if (ranges == null) {
+                ranges = buildRanges(scanner, GtfsCsvScanner.columnIndex(header, "shape_id", 0));
+                if (indexPath != null) {
+                    writeIndex(indexPath, fingerprint, ranges);
+                }
+            }
+
+            int shapeCount = 0;
+            for (int[] r : ranges) {
+                if (r != null) shapeCount++;
+            }
+            return new ShapeIndex(buffer, header, ranges, shapeCount);
+
+        } catch (IOException e) {
+            System.err.println("Errore apertura shapes.txt");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return il numero di shape presenti nel file
+     */
+    public int size() {
+        return shapeCount;
+    }
+
+    /**
+     * @return true se shapes.txt contiene lo shape
+     */
+    public boolean contains(int shapeIndex) {
+        return shapeIndex >= 0 && shapeIndex < ranges.length && ranges[shapeIndex] != null;
+    }
+
+    /**
+     * Restituisce lo shape in forma compatta, decodificandolo se non è già in cache.
+     * La decodifica avviene fuori dal lock della cache: due richieste dello stesso
+     * shape possono decodificarlo entrambe, ma in cache resta (e viene restituito)
+     * un solo percorso.
+     * @param shapeIndex indice in GtfsIds.SHAPES
+     * @return il percorso, o ShapePath.EMPTY se lo shape non esiste
+     */
+    public ShapePath get(int shapeIndex) {
+        if (!contains(shapeIndex)) {
+            return ShapePath.EMPTY;
+        }
+        synchronized (cache) {
+            ShapePath shape = cache.get(shapeIndex);
+            if (shape != null) {
+                return shape;
+            }
+        }
+        ShapePath decoded = ShapePath.fromPoints(GtfsIds.SHAPES.get(shapeIndex), points(shapeIndex));
+        synchronized (cache) {
+            ShapePath existing = cache.putIfAbsent(shapeIndex, decoded);
+            return existing != null ? existing : decoded;
+        }
+    }
+
+    /**
+     * Decodifica i punti dello shape, ordinati per sequence (senza cache).
+     * @return i punti, o una lista vuota se lo shape non esiste
+     */
+    public List<ShapePoint> points(int shapeIndex) {
+        if (!contains(shapeIndex)) {
+            return Collections.emptyList();
+        }
+        String shapeId = GtfsIds.SHAPES.get(shapeIndex);
+        int[] r = ranges[shapeIndex];
+        List<ShapePoint> points = new ArrayList<>();
+
+        for (int i = 0; i < r.length; i += 2) {
+            GtfsCsvScanner scanner = new GtfsCsvScanner(buffer, r[i], r[i + 1]);
+            while (scanner.nextRecord()) {
+                if (!scanner.has(latCol) || !scanner.has(lonCol) || !scanner.has(seqCol)) {
+                    continue; // Ignora righe malformate
+                }
+                points.add(new ShapePoint(shapeId,
+                        scanner.getDouble(latCol, 0),
+                        scanner.getDouble(lonCol, 0),
+                        scanner.getInt(seqCol, 0),
+                        scanner.getDouble(distCol, 0)));
+            }
+        }
+
+        Collections.sort(points);
+        return points;
+    }
+
+    /**
+     * Scansione unica del file: registra i blocchi di righe consecutive con lo stesso shape_id
+     */
+    private static int[][] buildRanges(GtfsCsvScanner scanner, int idCol) {
+        ByteBuffer buf = scanner.buffer();
+        int[][] ranges = new int[0][];
+        int current = -1;
+        int blockStart = scanner.position();
+        int lineStart = blockStart;
+
+        while (scanner.nextRecord()) {
+            if (!scanner.has(idCol)) {
+                lineStart = scanner.position();
+                continue;
+            }
+            int shape = GtfsIds.SHAPES.intern(buf, scanner.start(idCol), scanner.end(idCol));
+            if (shape != current) {
+                if (current >= 0) {
+                    ranges = addRange(ranges, current, blockStart, lineStart);
+                }
+                current = shape;
+                blockStart = lineStart;
+            }
+            lineStart = scanner.position();
+        }
+        if (current >= 0) {
+            ranges = addRange(ranges, current, blockStart, lineStart);
+        }
+        return ranges;
+    }
+
+    private static int[][] addRange(int[][] ranges, int shape, int start, int end) {
+        if (shape >= ranges.length) {
+            ranges = Arrays.copyOf(ranges, Math.max(shape + 1, ranges.length * 2));
+        }
+        int[] r = ranges[shape];
+        if (r == null) {
+            ranges[shape] = new int[]{start, end};
+        } else {
+            r = Arrays.copyOf(r, r.length + 2);
+            r[r.length - 2] = start;
+            r[r.length - 1] = end;
+            ranges[shape] = r;
+        }
+        return ranges;
+    }
+
+    /**
+     * @return gli intervalli salvati, o null se l'indice manca o non corrisponde a shapes.txt
+     */
+    private static int[][] readIndex(Path indexPath, GtfsFiles.Fingerprint source) {
+        if (!Files.exists(indexPath)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != source.getSize()
+                    || in.readLong() != source.getStamp()) {
+                return null;
+            }
+
+            int n = in.readInt();
+            int[][] ranges = new int[0][];
+            for (int i = 0; i < n; i++) {
+                int shape = GtfsIds.SHAPES.intern(in.readUTF());
+                int[] r = new int[in.readInt() * 2];
+                for (int j = 0; j < r.length; j++) {
+                    r[j] = in.readInt();
+                }
+                if (shape >= ranges.length) {
+                    ranges = Arrays.copyOf(ranges, Math.max(shape + 1, ranges.length * 2));
+                }
+                ranges[shape] = r;
+            }
+            System.out.println("ShapeIndex: indice letto da " + indexPath);
+            return ranges;
+
+        } catch (IOException e) {
+            System.err.println("ShapeIndex: indice non leggibile, verrà ricostruito (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    private static void writeIndex(Path indexPath, GtfsFiles.Fingerprint source, int[][] ranges) {
+        Path temp = indexPath.resolveSibling(INDEX_NAME + ".tmp");
+        try {
+            int n = 0;
+            for (int[] r : ranges) {
+                if (r != null) n++;
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(source.getSize());
+                out.writeLong(source.getStamp());
+                out.writeInt(n);
+                for (int shape = 0; shape < ranges.length; shape++) {
+                    int[] r = ranges[shape];
+                    if (r == null) continue;
+                    out.writeUTF(GtfsIds.SHAPES.get(shape));
+                    out.writeInt(r.length / 2);
+                    for (int value : r) {
+                        out.writeInt(value);
+                    }
+                }
+            }
+            Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("ShapeIndex: indice salvato in " + indexPath);
+
+        } catch (IOException e) {
+            // Cartella non scrivibile: l'indice resta solo in memoria
+            System.err.println("ShapeIndex: impossibile salvare l'indice (" + e.getMessage() + ")");
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Verrà sovrascritto al prossimo tentativo
+            }
+        }
+    }
+}
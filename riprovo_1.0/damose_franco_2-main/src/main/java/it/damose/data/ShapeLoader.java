@@ -1,5 +1,6 @@
 package it.damose.data;
 
+import it.damose.model.ShapePath;
 import it.damose.model.ShapePoint;
 import java.io.BufferedReader;
 import java.io.InputStream;
@@ -11,6 +12,42 @@ import java.util.*;
  */
 public class ShapeLoader {
 
+    private static ShapeIndex index;
+    private static boolean indexOpened;
+
+    /**
+     * Indice di shapes.txt, aperto al primo utilizzo
+     * @return l'indice, o null se shapes.txt non è disponibile
+     */
+    public static synchronized ShapeIndex getIndex() {
+        if (!indexOpened) {
+            indexOpened = true;
+            index = ShapeIndex.open();
+        }
+        return index;
+    }
+
+    /**
+     * Percorso di uno shape, letto su richiesta tramite l'indice
+     * @param shapeIndex indice in GtfsIds.SHAPES
+     * @return il percorso, o ShapePath.EMPTY se non disponibile
+     */
+    public static ShapePath getShape(int shapeIndex) {
+        ShapeIndex shapes = getIndex();
+        return shapes != null ? shapes.get(shapeIndex) : ShapePath.EMPTY;
+    }
+
+    /**
+     * Punti di uno shape a piena risoluzione, letti dall'indice senza passare dalla
+     * cache dei percorsi (per chi li usa una volta sola, come il simulatore)
+     * @param shapeIndex indice in GtfsIds.SHAPES
+     * @return i punti ordinati per sequence, o una lista vuota se non disponibile
+     */
+    public static List<ShapePoint> getPoints(int shapeIndex) {
+        ShapeIndex shapes = getIndex();
+        return shapes != null ? shapes.points(shapeIndex) : Collections.emptyList();
+    }
+
     /**
      * Carica tutti gli shapes raggruppati per shape_id
      * @return Map con chiave=shape_id e valore=lista ordinata di ShapePoint
@@ -18,40 +55,13 @@ public class ShapeLoader {
     public static Map<String, List<ShapePoint>> loadShapesFromResources() {
         Map<String, List<ShapePoint>> shapeMap = new HashMap<>();
 
-        // Prova percorsi diversi per trovare il file
-        String[] possiblePaths = {
-                "/shapes.txt",
-                "shapes.txt",
-                "/data/rome_static_gtfs/shapes.txt",
-                "data/rome_static_gtfs/shapes.txt"
-        };
-
-        InputStream is = null;
-        String usedPath = null;
-
-        // Cerca il file in tutti i percorsi possibili
-        for (String path : possiblePaths) {
-            is = ShapeLoader.class.getResourceAsStream(path);
-            if (is == null) {
-                is = ShapeLoader.class.getClassLoader().getResourceAsStream(path);
-            }
-            if (is != null) {
-                usedPath = path;
-                break;
-            }
-        }
-
+        InputStream is = GtfsFiles.open("shapes.txt");
         if (is == null) {
-            System.err.println("⚠️ shapes.txt NON TROVATO in nessuno di questi percorsi:");
-            for (String path : possiblePaths) {
-                System.err.println("  - " + path);
-            }
+            System.err.println("⚠️ shapes.txt NON TROVATO nel feed GTFS");
             System.err.println("Il percorso sarà disegnato usando le fermate (linee rette).");
             return shapeMap;
         }
 
-        System.out.println("✓ shapes.txt trovato in: " + usedPath);
-
         try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
             String headerLine = br.readLine(); // Salta header
             System.out.println("ShapeLoader - Header: " + headerLine);
@@ -112,40 +122,10 @@ public class ShapeLoader {
      * Carica solo gli shape point per uno specifico shape_id
      */
     public static List<ShapePoint> loadShapeById(String shapeId) {
-        List<ShapePoint> points = new ArrayList<>();
-
-        InputStream is = ShapeLoader.class.getResourceAsStream("/shapes.txt");
-        if (is == null) {
-            is = ShapeLoader.class.getClassLoader()
-                    .getResourceAsStream("data/rome_static_gtfs/shapes.txt");
-        }
-
-        if (is == null) {
-            return points;
+        ShapeIndex shapes = getIndex(); // l'apertura registra gli shape_id nel dizionario
+        if (shapes == null) {
+            return new ArrayList<>();
         }
-
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-            String line = br.readLine(); // Salta header
-
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-
-                try {
-                    ShapePoint point = ShapePoint.fromCsvLine(line);
-                    if (point.getShapeId().equals(shapeId)) {
-                        points.add(point);
-                    }
-                } catch (Exception e) {
-                    // Ignora righe malformate
-                }
-            }
-
-            Collections.sort(points);
-
-        } catch (Exception e) {
-            System.err.println("Errore caricamento shape " + shapeId);
-        }
-
-        return points;
+        return shapes.points(GtfsIds.SHAPES.indexOf(shapeId));
     }
 }
@@ -0,0 +1,187 @@
+package it.damose.data;
+
+import it.damose.model.ShapePoint;
+
+import java.util.List;
+
+/**
+ * Percorso di uno shape preparato per la simulazione: distanza cumulativa in metri
+ * di ogni punto e direzione di ogni tratto, calcolate una volta sola. Le fermate di
+ * un trip si proiettano sul percorso (project) e la posizione a una certa distanza
+ * si trova con una ricerca binaria sulle distanze (segmentAt).
+ * La distanza è calcolata dalla geometria: shape_dist_traveled è spesso assente o
+ * in unità diverse tra shapes.txt e stop_times.txt.
+ */
+public final class ShapeTrack {
+
+    private static final double EARTH_RADIUS = 6371000.0;
+
+    // Una fermata va sul primo tratto utile che dista al più questo in più del migliore:
+    // sui percorsi che ripassano vicino a se stessi evita di saltare avanti
+    private static final double PROJECTION_SLACK_METERS = 25.0;
+
+    private final double[] lats;
+    private final double[] lons;
+    private final float[] distances;
+    private final float[] bearings;
+
+    // Coordinate piane in metri (longitudine scalata alla latitudine del primo punto)
+    private final double[] xs;
+    private final double[] ys;
+
+    private ShapeTrack(double[] lats, double[] lons, double[] xs, double[] ys, float[] distances, float[] bearings) {
+        this.lats = lats;
+        this.lons = lons;
+        this.xs = xs;
+        this.ys = ys;
+        this.distances = distances;
+        this.bearings = bearings;
+    }
+
+    /**
+     * @param points i punti dello shape a piena risoluzione, ordinati per sequence
+     * @return il percorso, o null se lo shape ha meno di due punti
+     */
+    public static ShapeTrack of(List<ShapePoint> points) {
+        int n = points.size();
+        if (n < 2) {
+            return null;
+        }
+        double cosLat = Math.cos(Math.toRadians(points.get(0).getLat()));
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        float[] distances = new float[n];
+        float[] bearings = new float[n - 1];
+
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            lats[i] = points.get(i).getLat();
+            lons[i] = points.get(i).getLon();
+            xs[i] = Math.toRadians(lons[i]) * cosLat * EARTH_RADIUS;
+            ys[i] = Math.toRadians(lats[i]) * EARTH_RADIUS;
+            if (i > 0) {
+                total += Math.hypot(xs[i] - xs[i - 1], ys[i] - ys[i - 1]);
+                bearings[i - 1] = bearing(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+            }
+            distances[i] = (float) total;
+        }
+        return new ShapeTrack(lats, lons, xs, ys, distances, bearings);
+    }
+
+    /**
+     * @return la lunghezza del percorso in metri
+     */
+    public float length() {
+        return distances[distances.length - 1];
+    }
+
+    /**
+     * Proietta in ordine le fermate sul percorso. Ogni fermata cade sul tratto più
+     * vicino tra quelli non precedenti alla fermata prima, così le distanze non
+     * decrescono anche sui percorsi ad anello.
+     * @return la distanza di ogni fermata dall'inizio del percorso, in metri
+     */
+    public float[] project(double[] stopLats, double[] stopLons) {
+        double cosLat = Math.cos(Math.toRadians(lats[0]));
+        float[] result = new float[stopLats.length];
+        int segment = 0;
+        float previous = 0;
+        int segments = bearings.length;
+
+        for (int k = 0; k < stopLats.length; k++) {
+            double px = Math.toRadians(stopLons[k]) * cosLat * EARTH_RADIUS;
+            double py = Math.toRadians(stopLats[k]) * EARTH_RADIUS;
+
+            double best = Double.POSITIVE_INFINITY;
+            for (int s = segment; s < segments; s++) {
+                best = Math.min(best, distanceSq(s, px, py));
+            }
+            double limit = Math.sqrt(best) + PROJECTION_SLACK_METERS;
+            limit *= limit;
+
+            int s = segment;
+            while (s < segments - 1 && distanceSq(s, px, py) > limit) {
+                s++;
+            }
+            float d = (float) (distances[s] + fraction(s, px, py) * (distances[s + 1] - distances[s]));
+            previous = Math.max(previous, d);
+            result[k] = previous;
+            segment = s;
+        }
+        return result;
+    }
+
+    /**
+     * @return il tratto (i, i + 1) che contiene la distanza data, con ricerca binaria
+     */
+    public int segmentAt(float distance) {
+        int lo = 0;
+        int hi = bearings.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (distances[mid] <= distance) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    public double lat(int segment, float distance) {
+        return lats[segment] + (lats[segment + 1] - lats[segment]) * progress(segment, distance);
+    }
+
+    public double lon(int segment, float distance) {
+        return lons[segment] + (lons[segment + 1] - lons[segment]) * progress(segment, distance);
+    }
+
+    /**
+     * @return la direzione del tratto in gradi (0 = nord, senso orario)
+     */
+    public float bearing(int segment) {
+        return bearings[segment];
+    }
+
+    /**
+     * Direzione iniziale da un punto all'altro sulla sfera, in gradi in [0, 360)
+     */
+    public static float bearing(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double y = Math.sin(dLon) * Math.cos(phi2);
+        double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLon);
+        return (float) (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+    }
+
+    private double progress(int segment, float distance) {
+        float length = distances[segment + 1] - distances[segment];
+        if (length <= 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, (distance - distances[segment]) / length));
+    }
+
+    /**
+     * @return la posizione lungo il tratto s del punto più vicino a (px, py), in [0, 1]
+     */
+    private double fraction(int s, double px, double py) {
+        double dx = xs[s + 1] - xs[s];
+        double dy = ys[s + 1] - ys[s];
+        double len2 = dx * dx + dy * dy;
+        if (len2 == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, ((px - xs[s]) * dx + (py - ys[s]) * dy) / len2));
+    }
+
+    private double distanceSq(int s, double px, double py) {
+        double f = fraction(s, px, py);
+        double dx = xs[s] + (xs[s + 1] - xs[s]) * f - px;
+        double dy = ys[s] + (ys[s + 1] - ys[s]) * f - py;
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,125 @@
+package it.damose.data;
+
+import it.damose.model.Route;
+import it.damose.model.Stop;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Adiacenza fermate <-> linee in forma compatta (CSR): per ogni verso un array di
+ * offset indicizzato come GtfsIds e un array di valori. Le linee di una fermata
+ * sono già ordinate per nome, le fermate di una linea sono nell'ordine di
+ * Route.getAllStopIndexes(). Immutabile dopo la costruzione.
+ */
+public final class StopRouteIndex {
+
+    // routeOffsets[r]..routeOffsets[r+1]: fermate della linea r (indice in GtfsIds.ROUTES)
+    private final int[] routeOffsets;
+    private final int[] routeStops;
+
+    // stopOffsets[s]..stopOffsets[s+1]: linee della fermata s (indice in GtfsIds.STOPS)
+    private final int[] stopOffsets;
+    private final int[] stopRoutes;
+
+    private StopRouteIndex(int[] routeOffsets, int[] routeStops, int[] stopOffsets, int[] stopRoutes) {
+        this.routeOffsets = routeOffsets;
+        this.routeStops = routeStops;
+        this.stopOffsets = stopOffsets;
+        this.stopRoutes = stopRoutes;
+    }
+
+    /**
+     * Costruisce l'indice dalle route già collegate ai trip. Le fermate citate dagli
+     * stop_times ma assenti da stops.txt vengono ignorate.
+     */
+    public static StopRouteIndex build(List<Stop> stops, List<Route> routes) {
+        BitSet known = new BitSet();
+        for (Stop stop : stops) {
+            known.set(stop.getIndex());
+        }
+
+        // Le linee vengono visitate in ordine di nome: così la trasposizione
+        // produce le linee di ogni fermata già ordinate
+        Route[] byName = routes.toArray(new Route[0]);
+        Arrays.sort(byName, Comparator.comparing(Route::getName, Comparator.nullsLast(Comparator.naturalOrder())));
+
+        int routeCount = 0;
+        int stopCount = 0;
+        int[][] stopsOf = new int[byName.length][];
+        for (int i = 0; i < byName.length; i++) {
+            stopsOf[i] = Arrays.stream(byName[i].getAllStopIndexes()).filter(known::get).toArray();
+            routeCount = Math.max(routeCount, byName[i].getIndex() + 1);
+            for (int s : stopsOf[i]) {
+                stopCount = Math.max(stopCount, s + 1);
+            }
+        }
+
+        // Linea -> fermate
+        int[] routeOffsets = new int[routeCount + 1];
+        for (int i = 0; i < byName.length; i++) {
+            routeOffsets[byName[i].getIndex() + 1] = stopsOf[i].length;
+        }
+        for (int r = 0; r < routeCount; r++) {
+            routeOffsets[r + 1] += routeOffsets[r];
+        }
+        int[] routeStops = new int[routeOffsets[routeCount]];
+        for (int i = 0; i < byName.length; i++) {
+            int[] routeStopList = stopsOf[i];
+            System.arraycopy(routeStopList, 0, routeStops, routeOffsets[byName[i].getIndex()], routeStopList.length);
+        }
+
+        // Fermata -> linee (trasposizione)
+        int[] stopOffsets = new int[stopCount + 1];
+        for (int[] stopList : stopsOf) {
+            for (int s : stopList) {
+                stopOffsets[s + 1]++;
+            }
+        }
+        for (int s = 0; s < stopCount; s++) {
+            stopOffsets[s + 1] += stopOffsets[s];
+        }
+        int[] stopRoutes = new int[stopOffsets[stopCount]];
+        int[] next = Arrays.copyOf(stopOffsets, stopCount);
+        for (int i = 0; i < byName.length; i++) {
+            for (int s : stopsOf[i]) {
+                stopRoutes[next[s]++] = byName[i].getIndex();
+            }
+        }
+
+        return new StopRouteIndex(routeOffsets, routeStops, stopOffsets, stopRoutes);
+    }
+
+    /**
+     * @return la linea in posizione i, con routesStart(stop) <= i < routesEnd(stop)
+     *         (le linee di una fermata sono ordinate per nome)
+     */
+    public int routeAt(int i) {
+        return stopRoutes[i];
+    }
+
+    public int routesStart(int stop) {
+        return stop >= 0 && stop < stopOffsets.length - 1 ? stopOffsets[stop] : 0;
+    }
+
+    public int routesEnd(int stop) {
+        return stop >= 0 && stop < stopOffsets.length - 1 ? stopOffsets[stop + 1] : 0;
+    }
+
+    /**
+     * @return la fermata in posizione i, con stopsStart(route) <= i < stopsEnd(route)
+     */
+    public int stopAt(int i) {
+        return routeStops[i];
+    }
+
+    public int stopsStart(int route) {
+        return route >= 0 && route < routeOffsets.length - 1 ? routeOffsets[route] : 0;
+    }
+
+    public int stopsEnd(int route) {
+        return route >= 0 && route < routeOffsets.length - 1 ? routeOffsets[route + 1] : 0;
+    }
+}
@@ -0,0 +1,147 @@
+package it.damose.data;
+
+import it.damose.model.StopTime;
+
+import java.util.Arrays;
+
+/**
+ * Orari di passaggio raggruppati per fermata: per ogni fermata gli arrivi sono
+ * ordinati per orario, con il trip in un array parallelo (stesso schema a offset
+ * della StopTimeTable). "I prossimi N passaggi dopo l'orario T" diventa una ricerca
+ * binaria più la lettura di pochi elementi consecutivi.
+ */
+public class StopScheduleIndex {
+
+    private final StopTimeTable table;
+
+    // stopOffsets[s]..stopOffsets[s+1] è l'intervallo della fermata s (indice in GtfsIds.STOPS)
+    private final int[] stopOffsets;
+    private final int[] times;
+    private final int[] trips;
+
+    private StopScheduleIndex(StopTimeTable table, int[] stopOffsets, int[] times, int[] trips) {
+        this.table = table;
+        this.stopOffsets = stopOffsets;
+        this.times = times;
+        this.trips = trips;
+    }
+
+    /**
+     * Costruisce l'indice dalle righe della tabella (la linea di un passaggio si
+     * ricava dal suo trip)
+     */
+    public static StopScheduleIndex build(StopTimeTable table) {
+        int stopCount = 0;
+        for (int t = 0; t < table.tripCount(); t++) {
+            for (int row = table.start(t); row < table.end(t); row++) {
+                stopCount = Math.max(stopCount, table.stopIndex(t, row) + 1);
+            }
+        }
+
+        int[] offsets = new int[stopCount + 1];
+        for (int t = 0; t < table.tripCount(); t++) {
+            for (int row = table.start(t); row < table.end(t); row++) {
+                if (table.arrival(t, row) >= 0) {
+                    offsets[table.stopIndex(t, row) + 1]++;
+                }
+            }
+        }
+        for (int s = 0; s < stopCount; s++) {
+            offsets[s + 1] += offsets[s];
+        }
+
+        // Orario e trip nello stesso long: l'ordinamento per fermata è un sort di primitivi
+        long[] entries = new long[offsets[stopCount]];
+        int[] next = Arrays.copyOf(offsets, stopCount);
+        for (int t = 0; t < table.tripCount(); t++) {
+            for (int row = table.start(t); row < table.end(t); row++) {
+                int time = table.arrival(t, row);
+                if (time >= 0) {
+                    entries[next[table.stopIndex(t, row)]++] = ((long) time << 32) | t;
+                }
+            }
+        }
+
+        int[] times = new int[entries.length];
+        int[] trips = new int[entries.length];
+        for (int s = 0; s < stopCount; s++) {
+            Arrays.sort(entries, offsets[s], offsets[s + 1]);
+        }
+        for (int i = 0; i < entries.length; i++) {
+            times[i] = (int) (entries[i] >>> 32);
+            trips[i] = (int) entries[i];
+        }
+
+        return new StopScheduleIndex(table, offsets, times, trips);
+    }
+
+    /**
+     * @return la tabella da cui è stato costruito l'indice
+     */
+    public StopTimeTable table() {
+        return table;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    /**
+     * @return il primo elemento della fermata
+     */
+    public int start(int stop) {
+        return stop >= 0 && stop < stopOffsets.length - 1 ? stopOffsets[stop] : 0;
+    }
+
+    /**
+     * @return l'elemento successivo all'ultimo della fermata
+     */
+    public int end(int stop) {
+        return stop >= 0 && stop < stopOffsets.length - 1 ? stopOffsets[stop + 1] : 0;
+    }
+
+    /**
+     * Ricerca binaria del primo passaggio alla fermata con orario >= time
+     * @return l'elemento trovato, o end(stop) se non ce ne sono
+     */
+    public int firstAtOrAfter(int stop, int time) {
+        int lo = start(stop);
+        int hi = end(stop);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return l'orario di arrivo, in secondi dall'inizio del giorno di servizio
+     */
+    public int time(int i) {
+        return times[i];
+    }
+
+    /**
+     * @return il trip della tabella
+     */
+    public int trip(int i) {
+        return trips[i];
+    }
+
+    /**
+     * Crea lo StopTime del passaggio cercando la riga tra quelle del suo trip
+     */
+    public StopTime stopTime(int stop, int i) {
+        int trip = trips[i];
+        for (int row = table.start(trip); row < table.end(trip); row++) {
+            if (table.stopIndex(trip, row) == stop && table.arrival(trip, row) == times[i]) {
+                return table.get(trip, row);
+            }
+        }
+        return new StopTime(table.tripIdIndex(trip), times[i], times[i], stop, 0);
+    }
+}
@@ -0,0 +1,230 @@
+package it.damose.data;
+
+import it.damose.model.Stop;
+import it.damose.util.SearchText;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Indice invertito a n-grammi sui nomi delle fermate, per la ricerca mentre si scrive.
+ * I nomi sono indicizzati nella forma di SearchText.fold (senza accenti, abbreviazioni
+ * espanse), calcolata una volta sola; la query viene piegata allo stesso modo.
+ * Per ogni gramma (1, 2 o 3 caratteri consecutivi della chiave) c'è la lista
+ * ordinata delle fermate che lo contengono, in forma compatta (CSR). Una ricerca per
+ * sottostringa interseca le liste dei trigrammi della query e verifica solo i pochi
+ * candidati rimasti. Costruito una volta dopo il caricamento, poi solo letto.
+ */
+public final class StopSearchIndex {
+
+    private final Stop[] stops;
+    private final String[] keys;
+    private final Map<String, Integer> byId;
+
+    // Gramma impacchettato in un long (16 bit per carattere) -> numero della lista
+    private final Map<Long, Integer> grams;
+    private final int[] postingOffsets;
+    private final int[] postings;
+
+    private StopSearchIndex(Stop[] stops, String[] keys, Map<String, Integer> byId,
+                            Map<Long, Integer> grams, int[] postingOffsets, int[] postings) {
+        this.stops = stops;
+        this.keys = keys;
+        this.byId = byId;
+        this.grams = grams;
+        this.postingOffsets = postingOffsets;
+        this.postings = postings;
+    }
+
+    public static StopSearchIndex build(List<Stop> stopList) {
+        Stop[] stops = stopList.toArray(new Stop[0]);
+        String[] keys = new String[stops.length];
+        Map<String, Integer> byId = new HashMap<>(stops.length * 2);
+
+        // Primo passaggio: grammi distinti di ogni fermata e dimensione delle liste
+        Map<Long, Integer> grams = new HashMap<>();
+        int[][] gramsOf = new int[stops.length][];
+        int[] counts = new int[64];
+        for (int doc = 0; doc < stops.length; doc++) {
+            keys[doc] = SearchText.fold(stops[doc].getName());
+            byId.putIfAbsent(normalizeId(stops[doc].getId()), doc);
+
+            long[] packed = gramsOf(keys[doc]);
+            int[] ids = new int[packed.length];
+            for (int i = 0; i < packed.length; i++) {
+                Integer id = grams.get(packed[i]);
+                if (id == null) {
+                    id = grams.size();
+                    grams.put(packed[i], id);
+                    if (id >= counts.length) {
+                        counts = Arrays.copyOf(counts, counts.length * 2);
+                    }
+                }
+                ids[i] = id;
+                counts[id]++;
+            }
+            gramsOf[doc] = ids;
+        }
+
+        int[] offsets = new int[grams.size() + 1];
+        for (int g = 0; g < grams.size(); g++) {
+            offsets[g + 1] = offsets[g] + counts[g];
+        }
+
+        // Secondo passaggio: le fermate sono visitate in ordine, quindi ogni lista è ordinata
+        int[] postings = new int[offsets[grams.size()]];
+        int[] next = Arrays.copyOf(offsets, grams.size());
+        for (int doc = 0; doc < stops.length; doc++) {
+            for (int g : gramsOf[doc]) {
+                postings[next[g]++] = doc;
+            }
+        }
+
+        return new StopSearchIndex(stops, keys, byId, grams, offsets, postings);
+    }
+
+    /**
+     * Fermate il cui nome (piegato) contiene la query piegata, più quella con id uguale
+     * alla query. L'ordine è per posizione della corrispondenza nel nome, poi per nome più corto.
+     */
+    public List<Stop> search(String query) {
+        String q = SearchText.fold(query);
+        Integer exact = byId.get(normalizeId(query));
+        if (q.isEmpty()) {
+            return exact != null ? List.of(stops[exact]) : Collections.emptyList();
+        }
+
+        int[] candidates = candidates(q);
+        int count = candidates.length;
+
+        // Posizione, lunghezza e fermata nello stesso long: l'ordinamento è un sort di primitivi
+        long[] ranked = new long[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            int doc = candidates[i];
+            int pos = keys[doc].indexOf(q);
+            if (pos >= 0) {
+                long len = Math.min(keys[doc].length(), 0xFFFF);
+                ranked[found++] = ((long) Math.min(pos, 0xFFFF) << 48) | (len << 32) | doc;
+            }
+        }
+        Arrays.sort(ranked, 0, found);
+
+        List<Stop> results = new ArrayList<>(found + 1);
+        if (exact != null) {
+            results.add(stops[exact]);
+        }
+        for (int i = 0; i < found; i++) {
+            int doc = (int) ranked[i];
+            if (exact == null || doc != exact) {
+                results.add(stops[doc]);
+            }
+        }
+        return results;
+    }
+
+    public int size() {
+        return stops.length;
+    }
+
+    /**
+     * Candidati per la query: per query corte la lista del gramma stesso, altrimenti
+     * l'intersezione delle liste dei suoi trigrammi (dalla più corta)
+     */
+    private int[] candidates(String q) {
+        if (q.length() <= 3) {
+            Integer g = grams.get(pack(q, 0, q.length()));
+            return g == null ? new int[0] : Arrays.copyOfRange(postings, postingOffsets[g], postingOffsets[g + 1]);
+        }
+
+        long[] packed = gramsOf(q, 3);
+        Integer[] lists = new Integer[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            lists[i] = grams.get(packed[i]);
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(postingOffsets[a + 1] - postingOffsets[a],
+                postingOffsets[b + 1] - postingOffsets[b]));
+
+        int[] result = Arrays.copyOfRange(postings, postingOffsets[lists[0]], postingOffsets[lists[0] + 1]);
+        int count = result.length;
+        for (int l = 1; l < lists.length && count > 0; l++) {
+            count = intersect(result, count, postingOffsets[lists[l]], postingOffsets[lists[l] + 1]);
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Lascia in a[0..count) solo le fermate presenti anche in postings[from..to)
+     * (entrambi ordinati)
+     * @return il numero di elementi rimasti
+     */
+    private int intersect(int[] a, int count, int from, int to) {
+        int kept = 0;
+        int j = from;
+        for (int i = 0; i < count && j < to; i++) {
+            while (j < to && postings[j] < a[i]) {
+                j++;
+            }
+            if (j < to && postings[j] == a[i]) {
+                a[kept++] = a[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Grammi distinti di 1, 2 e 3 caratteri della chiave
+     */
+    private static long[] gramsOf(String key) {
+        long[] all = new long[key.length() * 3];
+        int n = 0;
+        for (int len = 1; len <= 3; len++) {
+            for (int i = 0; i + len <= key.length(); i++) {
+                all[n++] = pack(key, i, len);
+            }
+        }
+        return distinct(all, n);
+    }
+
+    /**
+     * Grammi distinti di esattamente len caratteri
+     */
+    private static long[] gramsOf(String key, int len) {
+        long[] all = new long[Math.max(0, key.length() - len + 1)];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = pack(key, i, len);
+        }
+        return distinct(all, all.length);
+    }
+
+    private static long[] distinct(long[] values, int n) {
+        Arrays.sort(values, 0, n);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (m == 0 || values[m - 1] != values[i]) {
+                values[m++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, m);
+    }
+
+    private static long pack(String s, int from, int len) {
+        long gram = 0;
+        for (int i = from; i < from + len; i++) {
+            gram = (gram << 16) | s.charAt(i);
+        }
+        return gram;
+    }
+
+    private static String normalizeId(String s) {
+        return s == null ? "" : s.trim().toLowerCase(Locale.ROOT);
+    }
+}
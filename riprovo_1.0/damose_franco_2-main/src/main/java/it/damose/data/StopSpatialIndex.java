@@ -0,0 +1,300 @@
+package it.damose.data;
+
+import it.damose.model.Stop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Indice spaziale statico sulle fermate: un KD-tree implicito in array paralleli
+ * (il nodo di un intervallo è il suo elemento centrale, niente oggetti per nodo).
+ * Le coordinate sono proiettate in metri su un piano tangente alla latitudine media,
+ * abbastanza preciso per distanze urbane e regionali. Costruito una volta, poi solo letto.
+ */
+public final class StopSpatialIndex {
+
+    private static final double EARTH_RADIUS = 6371000.0;
+
+    // Sotto questa dimensione gli intervalli si scorrono in sequenza
+    private static final int LEAF_SIZE = 8;
+
+    private final Stop[] stops;
+    private final double[] xs;
+    private final double[] ys;
+    private final double cosLat;
+
+    private StopSpatialIndex(Stop[] stops, double[] xs, double[] ys, double cosLat) {
+        this.stops = stops;
+        this.xs = xs;
+        this.ys = ys;
+        this.cosLat = cosLat;
+    }
+
+    public static StopSpatialIndex build(List<Stop> stopList) {
+        Stop[] stops = stopList.toArray(new Stop[0]);
+        double meanLat = 0;
+        for (Stop stop : stops) {
+            meanLat += stop.getLat();
+        }
+        double cosLat = stops.length > 0 ? Math.cos(Math.toRadians(meanLat / stops.length)) : 1;
+
+        double[] xs = new double[stops.length];
+        double[] ys = new double[stops.length];
+        for (int i = 0; i < stops.length; i++) {
+            xs[i] = x(stops[i].getLon(), cosLat);
+            ys[i] = y(stops[i].getLat());
+        }
+
+        StopSpatialIndex index = new StopSpatialIndex(stops, xs, ys, cosLat);
+        index.split(0, stops.length, 0);
+        return index;
+    }
+
+    public int size() {
+        return stops.length;
+    }
+
+    /**
+     * Le k fermate più vicine al punto, dalla più vicina
+     * @param maxMeters distanza massima (Double.POSITIVE_INFINITY per nessun limite)
+     */
+    public List<Stop> nearest(double lat, double lon, int k, double maxMeters) {
+        if (k <= 0 || stops.length == 0) {
+            return new ArrayList<>();
+        }
+        Heap heap = new Heap(Math.min(k, stops.length), maxMeters * maxMeters);
+        nearest(0, stops.length, 0, x(lon, cosLat), y(lat), heap);
+        return heap.sorted(stops);
+    }
+
+    /**
+     * Fermate entro radiusMeters dal punto, dalla più vicina
+     */
+    public List<Stop> within(double lat, double lon, double radiusMeters) {
+        Heap found = new Heap(16, radiusMeters * radiusMeters);
+        within(0, stops.length, 0, x(lon, cosLat), y(lat), found);
+        return found.sorted(stops);
+    }
+
+    /**
+     * Fermate dentro il riquadro (estremi inclusi), in ordine non specificato
+     */
+    public List<Stop> inBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<Stop> result = new ArrayList<>();
+        inBox(0, stops.length, 0, x(minLon, cosLat), y(minLat), x(maxLon, cosLat), y(maxLat), result);
+        return result;
+    }
+
+    private void nearest(int lo, int hi, int axis, double qx, double qy, Heap heap) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                heap.offer(distanceSq(i, qx, qy), i);
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        heap.offer(distanceSq(mid, qx, qy), mid);
+
+        double diff = axis == 0 ? qx - xs[mid] : qy - ys[mid];
+        if (diff < 0) {
+            nearest(lo, mid, axis ^ 1, qx, qy, heap);
+            if (diff * diff <= heap.bound()) {
+                nearest(mid + 1, hi, axis ^ 1, qx, qy, heap);
+            }
+        } else {
+            nearest(mid + 1, hi, axis ^ 1, qx, qy, heap);
+            if (diff * diff <= heap.bound()) {
+                nearest(lo, mid, axis ^ 1, qx, qy, heap);
+            }
+        }
+    }
+
+    private void within(int lo, int hi, int axis, double qx, double qy, Heap found) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                found.add(distanceSq(i, qx, qy), i);
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        found.add(distanceSq(mid, qx, qy), mid);
+
+        double diff = axis == 0 ? qx - xs[mid] : qy - ys[mid];
+        if (diff < 0 || diff * diff <= found.limit) {
+            within(lo, mid, axis ^ 1, qx, qy, found);
+        }
+        if (diff >= 0 || diff * diff <= found.limit) {
+            within(mid + 1, hi, axis ^ 1, qx, qy, found);
+        }
+    }
+
+    private void inBox(int lo, int hi, int axis, double minX, double minY, double maxX, double maxY, List<Stop> result) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY) {
+                    result.add(stops[i]);
+                }
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (xs[mid] >= minX && xs[mid] <= maxX && ys[mid] >= minY && ys[mid] <= maxY) {
+            result.add(stops[mid]);
+        }
+        double value = axis == 0 ? xs[mid] : ys[mid];
+        if ((axis == 0 ? minX : minY) <= value) {
+            inBox(lo, mid, axis ^ 1, minX, minY, maxX, maxY, result);
+        }
+        if ((axis == 0 ? maxX : maxY) >= value) {
+            inBox(mid + 1, hi, axis ^ 1, minX, minY, maxX, maxY, result);
+        }
+    }
+
+    /**
+     * Costruzione: l'elemento centrale dell'intervallo diventa la mediana sull'asse,
+     * a sinistra i minori o uguali, a destra i maggiori o uguali
+     */
+    private void split(int lo, int hi, int axis) {
+        if (hi - lo <= LEAF_SIZE) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis == 0 ? xs : ys);
+        split(lo, mid, axis ^ 1);
+        split(mid + 1, hi, axis ^ 1);
+    }
+
+    /**
+     * Quickselect su [left, right]: porta in posizione k l'elemento che ci starebbe
+     * ordinando per key
+     */
+    private void select(int left, int right, int k, double[] key) {
+        while (right > left) {
+            double pivot = key[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (key[i] < pivot) i++;
+                while (key[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        double x = xs[a]; xs[a] = xs[b]; xs[b] = x;
+        double y = ys[a]; ys[a] = ys[b]; ys[b] = y;
+        Stop s = stops[a]; stops[a] = stops[b]; stops[b] = s;
+    }
+
+    private double distanceSq(int i, double qx, double qy) {
+        double dx = xs[i] - qx;
+        double dy = ys[i] - qy;
+        return dx * dx + dy * dy;
+    }
+
+    private static double x(double lon, double cosLat) {
+        return Math.toRadians(lon) * cosLat * EARTH_RADIUS;
+    }
+
+    private static double y(double lat) {
+        return Math.toRadians(lat) * EARTH_RADIUS;
+    }
+
+    /**
+     * Max-heap limitato delle k fermate più vicine trovate finora. Per le ricerche
+     * per raggio è usato anche come semplice raccolta senza limite di numero (add).
+     */
+    private static final class Heap {
+        private double[] dist;
+        private int[] item;
+        private final double limit;
+        private int size;
+
+        Heap(int capacity, double limit) {
+            this.dist = new double[capacity];
+            this.item = new int[capacity];
+            this.limit = limit;
+        }
+
+        /**
+         * @return la distanza (al quadrato) oltre la quale un punto non entra più
+         */
+        double bound() {
+            return size < dist.length ? limit : Math.min(limit, dist[0]);
+        }
+
+        void offer(double d, int i) {
+            if (d > bound()) {
+                return;
+            }
+            if (size < dist.length) {
+                int c = size++;
+                while (c > 0 && dist[(c - 1) >>> 1] < d) {
+                    int p = (c - 1) >>> 1;
+                    dist[c] = dist[p];
+                    item[c] = item[p];
+                    c = p;
+                }
+                dist[c] = d;
+                item[c] = i;
+            } else if (d < dist[0]) {
+                // Sostituisce la radice (la più lontana) e la fa scendere
+                int c = 0;
+                while (true) {
+                    int l = 2 * c + 1;
+                    if (l >= size) break;
+                    int r = l + 1;
+                    int big = r < size && dist[r] > dist[l] ? r : l;
+                    if (dist[big] <= d) break;
+                    dist[c] = dist[big];
+                    item[c] = item[big];
+                    c = big;
+                }
+                dist[c] = d;
+                item[c] = i;
+            }
+        }
+
+        /**
+         * Aggiunge in coda se entro il limite, senza mantenere la forma di heap
+         */
+        void add(double d, int i) {
+            if (d > limit) {
+                return;
+            }
+            if (size == dist.length) {
+                dist = Arrays.copyOf(dist, size * 2);
+                item = Arrays.copyOf(item, size * 2);
+            }
+            dist[size] = d;
+            item[size++] = i;
+        }
+
+        /**
+         * @return le fermate raccolte, dalla più vicina
+         */
+        List<Stop> sorted(Stop[] stops) {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(dist[a], dist[b]));
+            List<Stop> result = new ArrayList<>(size);
+            for (int i : order) {
+                result.add(stops[item[i]]);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,584 @@
+package it.damose.data;
+
+import it.damose.model.StopTime;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Archivio compatto degli stop_times, organizzato per percorsi tipo (journey pattern).
+ * I trip che toccano le stesse fermate con la stessa stop_sequence condividono un
+ * pattern, memorizzato una volta sola; ogni trip conserva solo il pattern, l'orario
+ * di partenza e, per ogni fermata, gli scarti da quell'orario in un char (16 bit
+ * senza segno, fino a ~18 ore).
+ *
+ * Le righe sono virtuali ma numerate come prima: ordinate per trip e, dentro ogni
+ * trip, per stop_sequence; tripOffsets[t]..tripOffsets[t+1] è l'intervallo del trip t.
+ * I metodi che ricevono anche il trip evitano di ricavarlo dalla riga (ricerca binaria).
+ */
+public class StopTimeTable {
+
+    // Scarto che indica un orario assente nel file
+    private static final char NO_TIME = 0xFFFF;
+    private static final int MAX_OFFSET = NO_TIME - 1;
+
+    // Per ogni trip della tabella: indice in GtfsIds.TRIPS, pattern (-1 se senza righe),
+    // orario di riferimento in secondi (-1 se nessun orario valido)
+    private final int[] tripIds;
+    private final int[] tripPattern;
+    private final int[] tripStart;
+    private final int[] tripOffsets;
+
+    // Per riga: scarto di arrivo e partenza da tripStart
+    private final char[] arrivalOffset;
+    private final char[] departureOffset;
+
+    // patternOffsets[p]..patternOffsets[p+1]: fermate (GtfsIds.STOPS) e stop_sequence del pattern p
+    private final int[] patternOffsets;
+    private final int[] patternStops;
+    private final int[] patternSequence;
+
+    StopTimeTable(int[] tripIds, int[] tripPattern, int[] tripStart, int[] tripOffsets,
+                  char[] arrivalOffset, char[] departureOffset,
+                  int[] patternOffsets, int[] patternStops, int[] patternSequence) {
+        this.tripIds = tripIds;
+        this.tripPattern = tripPattern;
+        this.tripStart = tripStart;
+        this.tripOffsets = tripOffsets;
+        this.arrivalOffset = arrivalOffset;
+        this.departureOffset = departureOffset;
+        this.patternOffsets = patternOffsets;
+        this.patternStops = patternStops;
+        this.patternSequence = patternSequence;
+    }
+
+    /**
+     * @return il numero totale di righe
+     */
+    public int size() {
+        return arrivalOffset.length;
+    }
+
+    public int tripCount() {
+        return tripIds.length;
+    }
+
+    /**
+     * @return la prima riga del trip
+     */
+    public int start(int trip) {
+        return tripOffsets[trip];
+    }
+
+    /**
+     * @return la riga successiva all'ultima del trip
+     */
+    public int end(int trip) {
+        return tripOffsets[trip + 1];
+    }
+
+    /**
+     * @return il trip della riga (ricerca binaria sugli offset dei trip)
+     */
+    public int tripIndex(int row) {
+        int lo = 0;
+        int hi = tripIds.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (tripOffsets[mid] <= row) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return l'indice della fermata in GtfsIds.STOPS
+     */
+    public int stopIndex(int row) {
+        return stopIndex(tripIndex(row), row);
+    }
+
+    public int arrival(int row) {
+        return arrival(tripIndex(row), row);
+    }
+
+    public int departure(int row) {
+        return departure(tripIndex(row), row);
+    }
+
+    public int sequence(int row) {
+        return sequence(tripIndex(row), row);
+    }
+
+    /**
+     * Come stopIndex(row), con il trip della riga già noto
+     */
+    public int stopIndex(int trip, int row) {
+        return patternStops[patternOffsets[tripPattern[trip]] + row - tripOffsets[trip]];
+    }
+
+    /**
+     * Come arrival(row), con il trip della riga già noto
+     */
+    public int arrival(int trip, int row) {
+        char offset = arrivalOffset[row];
+        return offset == NO_TIME ? -1 : tripStart[trip] + offset;
+    }
+
+    /**
+     * Come departure(row), con il trip della riga già noto
+     */
+    public int departure(int trip, int row) {
+        char offset = departureOffset[row];
+        return offset == NO_TIME ? -1 : tripStart[trip] + offset;
+    }
+
+    /**
+     * Come sequence(row), con il trip della riga già noto
+     */
+    public int sequence(int trip, int row) {
+        return patternSequence[patternOffsets[tripPattern[trip]] + row - tripOffsets[trip]];
+    }
+
+    /**
+     * @return l'indice in GtfsIds.TRIPS del trip della tabella
+     */
+    public int tripIdIndex(int trip) {
+        return tripIds[trip];
+    }
+
+    public String tripId(int row) {
+        return GtfsIds.TRIPS.get(tripIds[tripIndex(row)]);
+    }
+
+    public String stopId(int row) {
+        return GtfsIds.STOPS.get(stopIndex(row));
+    }
+
+    /**
+     * @return il pattern del trip, o -1 se il trip non ha righe
+     */
+    public int pattern(int trip) {
+        return tripPattern[trip];
+    }
+
+    /**
+     * @return l'orario di riferimento del trip (secondi dall'inizio del giorno di servizio)
+     */
+    public int tripStart(int trip) {
+        return tripStart[trip];
+    }
+
+    public int patternCount() {
+        return patternOffsets.length - 1;
+    }
+
+    /**
+     * @return le fermate del pattern, nell'ordine di percorrenza (copia)
+     */
+    public int[] patternStops(int pattern) {
+        return Arrays.copyOfRange(patternStops, patternOffsets[pattern], patternOffsets[pattern + 1]);
+    }
+
+    /**
+     * Crea lo StopTime (oggetto leggero) corrispondente a una riga
+     */
+    public StopTime get(int row) {
+        return get(tripIndex(row), row);
+    }
+
+    /**
+     * Come get(row), con il trip della riga già noto
+     */
+    public StopTime get(int trip, int row) {
+        return new StopTime(tripIds[trip], arrival(trip, row), departure(trip, row),
+                stopIndex(trip, row), sequence(trip, row));
+    }
+
+    /**
+     * @return una vista in sola lettura sugli stop_times del trip
+     */
+    public List<StopTime> stopTimesOf(int trip) {
+        int from = start(trip);
+        int to = end(trip);
+        return new AbstractList<>() {
+            @Override
+            public StopTime get(int i) {
+                if (i < 0 || i >= to - from) {
+                    throw new IndexOutOfBoundsException("Indice " + i + " su " + (to - from));
+                }
+                return StopTimeTable.this.get(trip, from + i);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    /**
+     * @return una vista in sola lettura su tutte le righe della tabella
+     */
+    public List<StopTime> asList() {
+        return new AbstractList<>() {
+            @Override
+            public StopTime get(int row) {
+                return StopTimeTable.this.get(row);
+            }
+
+            @Override
+            public int size() {
+                return StopTimeTable.this.size();
+            }
+        };
+    }
+
+    /**
+     * Copia della tabella con le sole righe dei trip indicati. La numerazione dei trip
+     * e i pattern non cambiano: i trip esclusi restano con un intervallo vuoto.
+     * @param keep trip della tabella da conservare
+     */
+    public StopTimeTable retainTrips(BitSet keep) {
+        int trips = tripIds.length;
+        int[] offsets = new int[trips + 1];
+        int[] pattern = new int[trips];
+        for (int t = 0; t < trips; t++) {
+            boolean kept = keep.get(t);
+            offsets[t + 1] = offsets[t] + (kept ? end(t) - start(t) : 0);
+            pattern[t] = kept ? tripPattern[t] : -1;
+        }
+
+        int rows = offsets[trips];
+        char[] arr = new char[rows];
+        char[] dep = new char[rows];
+        for (int t = keep.nextSetBit(0); t >= 0 && t < trips; t = keep.nextSetBit(t + 1)) {
+            int from = start(t);
+            int length = end(t) - from;
+            System.arraycopy(arrivalOffset, from, arr, offsets[t], length);
+            System.arraycopy(departureOffset, from, dep, offsets[t], length);
+        }
+        return new StopTimeTable(tripIds, pattern, tripStart, offsets, arr, dep,
+                patternOffsets, patternStops, patternSequence);
+    }
+
+    // Accesso diretto alle colonne per lo snapshot binario
+
+    int[] tripPatternColumn() {
+        return tripPattern;
+    }
+
+    int[] tripStartColumn() {
+        return tripStart;
+    }
+
+    int[] tripOffsetsColumn() {
+        return tripOffsets;
+    }
+
+    char[] arrivalOffsetColumn() {
+        return arrivalOffset;
+    }
+
+    char[] departureOffsetColumn() {
+        return departureOffset;
+    }
+
+    int[] patternOffsetsColumn() {
+        return patternOffsets;
+    }
+
+    int[] patternStopsColumn() {
+        return patternStops;
+    }
+
+    int[] patternSequenceColumn() {
+        return patternSequence;
+    }
+
+    /**
+     * Accumula le righe in ordine di lettura e le ordina per trip in build()
+     */
+    public static class Builder {
+        private int[] trip;
+        private int[] stop;
+        private int[] arr;
+        private int[] dep;
+        private int[] seq;
+        private int size;
+
+        public Builder() {
+            this(1024);
+        }
+
+        /**
+         * @param capacity righe previste (evita le riallocazioni se già note)
+         */
+        public Builder(int capacity) {
+            capacity = Math.max(16, capacity);
+            trip = new int[capacity];
+            stop = new int[capacity];
+            arr = new int[capacity];
+            dep = new int[capacity];
+            seq = new int[capacity];
+        }
+
+        private void ensureCapacity(int rows) {
+            if (rows > trip.length) {
+                int capacity = Math.max(rows, trip.length + (trip.length >> 1));
+                trip = Arrays.copyOf(trip, capacity);
+                stop = Arrays.copyOf(stop, capacity);
+                arr = Arrays.copyOf(arr, capacity);
+                dep = Arrays.copyOf(dep, capacity);
+                seq = Arrays.copyOf(seq, capacity);
+            }
+        }
+
+        public void add(int tripIndex, int stopIndex, int arrival, int departure, int sequence) {
+            ensureCapacity(size + 1);
+            trip[size] = tripIndex;
+            stop[size] = stopIndex;
+            arr[size] = arrival;
+            dep[size] = departure;
+            seq[size] = sequence;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Rinumera sul posto le fermate delle righe già aggiunte
+         */
+        public void remapStops(int[] stopMapping) {
+            for (int i = 0; i < size; i++) {
+                stop[i] = stopMapping[stop[i]];
+            }
+        }
+
+        /**
+         * Accoda le righe di un altro builder rinumerando trip e fermate
+         * (usato per unire i pezzi letti in parallelo, nell'ordine del file).
+         */
+        public void addAll(Builder other, int[] tripMapping, int[] stopMapping) {
+            int n = other.size;
+            ensureCapacity(size + n);
+            for (int i = 0; i < n; i++) {
+                trip[size + i] = tripMapping[other.trip[i]];
+                stop[size + i] = stopMapping[other.stop[i]];
+            }
+            System.arraycopy(other.arr, 0, arr, size, n);
+            System.arraycopy(other.dep, 0, dep, size, n);
+            System.arraycopy(other.seq, 0, seq, size, n);
+            size += n;
+        }
+
+        /**
+         * Ordina le righe per trip (counting sort stabile) e poi per stop_sequence.
+         * Le fermate passate ad add() devono essere indici di GtfsIds.STOPS.
+         * @param tripIds indici in GtfsIds.TRIPS dei trip, nell'ordine usato in add()
+         */
+        public StopTimeTable build(int[] tripIds) {
+            int[] identity = new int[tripIds.length];
+            for (int t = 0; t < identity.length; t++) {
+                identity[t] = t;
+            }
+            return build(tripIds, identity);
+        }
+
+        /**
+         * Come build(tripIds), ma rinumera i trip: la riga aggiunta con trip t
+         * finisce nel trip tripMapping[t], oppure viene scartata se il valore è -1.
+         */
+        public StopTimeTable build(int[] tripIds, int[] tripMapping) {
+            int trips = tripIds.length;
+            int[] offsets = new int[trips + 1];
+            for (int i = 0; i < size; i++) {
+                int t = tripMapping[trip[i]];
+                if (t >= 0) {
+                    offsets[t + 1]++;
+                }
+            }
+            for (int t = 0; t < trips; t++) {
+                offsets[t + 1] += offsets[t];
+            }
+
+            int rows = offsets[trips];
+            int[] next = Arrays.copyOf(offsets, trips);
+            int[] tStop = new int[rows];
+            int[] tArr = new int[rows];
+            int[] tDep = new int[rows];
+            int[] tSeq = new int[rows];
+            for (int i = 0; i < size; i++) {
+                int t = tripMapping[trip[i]];
+                if (t < 0) continue;
+                int row = next[t]++;
+                tStop[row] = stop[i];
+                tArr[row] = arr[i];
+                tDep[row] = dep[i];
+                tSeq[row] = seq[i];
+            }
+
+            // Di norma le righe sono già in ordine di stop_sequence
+            for (int t = 0; t < trips; t++) {
+                sortBySequence(offsets[t], offsets[t + 1], tStop, tArr, tDep, tSeq);
+            }
+
+            return toPatterns(tripIds, offsets, tStop, tArr, tDep, tSeq);
+        }
+
+        /**
+         * Raggruppa i trip per sequenza di fermate e converte gli orari in scarti
+         * dall'orario di riferimento del trip
+         */
+        private static StopTimeTable toPatterns(int[] tripIds, int[] offsets,
+                                                int[] stop, int[] arr, int[] dep, int[] seq) {
+            int trips = tripIds.length;
+            int rows = offsets[trips];
+            int[] tripPattern = new int[trips];
+            int[] tripStart = new int[trips];
+            char[] arrivalOffset = new char[rows];
+            char[] departureOffset = new char[rows];
+
+            Map<PatternKey, Integer> patterns = new HashMap<>();
+            int[] patternOffsets = new int[64];
+            int[] patternStops = new int[1024];
+            int[] patternSequence = new int[1024];
+            int patternCount = 0;
+            int patternRows = 0;
+            int overflow = 0;
+
+            for (int t = 0; t < trips; t++) {
+                int from = offsets[t];
+                int to = offsets[t + 1];
+                if (from == to) {
+                    tripPattern[t] = -1;
+                    tripStart[t] = -1;
+                    continue;
+                }
+
+                PatternKey key = new PatternKey(stop, seq, from, to);
+                Integer p = patterns.get(key);
+                if (p == null) {
+                    p = patternCount++;
+                    int length = to - from;
+                    if (patternCount + 1 > patternOffsets.length) {
+                        patternOffsets = Arrays.copyOf(patternOffsets, patternOffsets.length * 2);
+                    }
+                    if (patternRows + length > patternStops.length) {
+                        int capacity = Math.max(patternRows + length, patternStops.length * 2);
+                        patternStops = Arrays.copyOf(patternStops, capacity);
+                        patternSequence = Arrays.copyOf(patternSequence, capacity);
+                    }
+                    System.arraycopy(stop, from, patternStops, patternRows, length);
+                    System.arraycopy(seq, from, patternSequence, patternRows, length);
+                    patternOffsets[p] = patternRows;
+                    patternRows += length;
+                    patternOffsets[p + 1] = patternRows;
+                    patterns.put(new PatternKey(patternStops, patternSequence, patternOffsets[p], patternRows), p);
+                }
+                tripPattern[t] = p;
+
+                // Orario di riferimento: il minimo valido, così gli scarti non sono negativi
+                int base = Integer.MAX_VALUE;
+                for (int row = from; row < to; row++) {
+                    if (arr[row] >= 0) base = Math.min(base, arr[row]);
+                    if (dep[row] >= 0) base = Math.min(base, dep[row]);
+                }
+                tripStart[t] = base == Integer.MAX_VALUE ? -1 : base;
+                for (int row = from; row < to; row++) {
+                    arrivalOffset[row] = toOffset(arr[row], base);
+                    departureOffset[row] = toOffset(dep[row], base);
+                    if ((arr[row] >= 0 && arrivalOffset[row] == NO_TIME)
+                            || (dep[row] >= 0 && departureOffset[row] == NO_TIME)) {
+                        overflow++;
+                    }
+                }
+            }
+
+            if (overflow > 0) {
+                System.err.println("StopTimeTable: " + overflow
+                        + " orari oltre " + MAX_OFFSET + " s dall'inizio del trip, considerati assenti");
+            }
+
+            return new StopTimeTable(tripIds, tripPattern, tripStart, offsets, arrivalOffset, departureOffset,
+                    Arrays.copyOf(patternOffsets, patternCount + 1),
+                    Arrays.copyOf(patternStops, patternRows),
+                    Arrays.copyOf(patternSequence, patternRows));
+        }
+
+        private static char toOffset(int time, int base) {
+            if (time < 0 || time - base > MAX_OFFSET) {
+                return NO_TIME;
+            }
+            return (char) (time - base);
+        }
+
+        private static void sortBySequence(int from, int to, int[] stop, int[] arr, int[] dep, int[] seq) {
+            for (int i = from + 1; i < to; i++) {
+                if (seq[i] >= seq[i - 1]) continue;
+
+                // Insertion sort: i trip hanno poche decine di fermate
+                int s = stop[i], a = arr[i], d = dep[i], q = seq[i];
+                int j = i - 1;
+                while (j >= from && seq[j] > q) {
+                    stop[j + 1] = stop[j];
+                    arr[j + 1] = arr[j];
+                    dep[j + 1] = dep[j];
+                    seq[j + 1] = seq[j];
+                    j--;
+                }
+                stop[j + 1] = s;
+                arr[j + 1] = a;
+                dep[j + 1] = d;
+                seq[j + 1] = q;
+            }
+        }
+    }
+
+    /**
+     * Chiave di un pattern: fermate e stop_sequence nell'intervallo [from, to) degli array
+     */
+    private static final class PatternKey {
+        private final int[] stops;
+        private final int[] sequence;
+        private final int from;
+        private final int to;
+        private final int hash;
+
+        PatternKey(int[] stops, int[] sequence, int from, int to) {
+            this.stops = stops;
+            this.sequence = sequence;
+            this.from = from;
+            this.to = to;
+            int h = to - from;
+            for (int i = from; i < to; i++) {
+                h = h * 31 + stops[i];
+                h = h * 31 + sequence[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PatternKey other) || other.hash != hash || other.to - other.from != to - from) {
+                return false;
+            }
+            return Arrays.equals(stops, from, to, other.stops, other.from, other.to)
+                    && Arrays.equals(sequence, from, to, other.sequence, other.from, other.to);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package it.damose.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Misura la lettura parallela di stop_times.txt al variare del numero di thread.
+ * Uso: java it.damose.data.StopTimesBenchmark [maxThread] [ripetizioni]
+ * Verifica anche che ogni configurazione produca esattamente la stessa tabella.
+ */
+public class StopTimesBenchmark {
+
+    public static void main(String[] args) {
+        int maxWorkers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<Integer> workerCounts = new ArrayList<>();
+        for (int w = 1; w < maxWorkers; w *= 2) {
+            workerCounts.add(w);
+        }
+        workerCounts.add(maxWorkers);
+
+        // Riscaldamento (JIT e pagine del file in cache)
+        long reference = checksum(StopTimesLoader.parseStopTimes(1).toTable());
+
+        System.out.println("========================================");
+        System.out.println("BENCHMARK STOP_TIMES (core disponibili: "
+                + Runtime.getRuntime().availableProcessors() + ")");
+        System.out.println("thread   mediana ms   speedup   risultato");
+
+        double baseline = 0;
+        for (int workers : workerCounts) {
+            long[] times = new long[runs];
+            StopTimesLoader.ParsedStopTimes parsed = null;
+            for (int r = 0; r < runs; r++) {
+                long start = System.nanoTime();
+                parsed = StopTimesLoader.parseStopTimes(workers);
+                times[r] = System.nanoTime() - start;
+            }
+            Arrays.sort(times);
+            double median = times[runs / 2] / 1_000_000.0;
+            if (baseline == 0) {
+                baseline = median;
+            }
+
+            boolean same = checksum(parsed.toTable()) == reference;
+            System.out.printf("%6d   %10.1f   %7.2fx   %s%n",
+                    workers, median, baseline / median, same ? "identico" : "DIVERSO!");
+        }
+        System.out.println("========================================");
+    }
+
+    /**
+     * Impronta della tabella: cambia se cambiano valori o ordine delle righe
+     */
+    private static long checksum(StopTimeTable table) {
+        long h = table.size();
+        for (int t = 0; t < table.tripCount(); t++) {
+            h = h * 31 + GtfsIds.TRIPS.get(table.tripIdIndex(t)).hashCode();
+            for (int i = table.start(t); i < table.end(t); i++) {
+                h = h * 31 + GtfsIds.STOPS.get(table.stopIndex(t, i)).hashCode();
+                h = h * 31 + table.arrival(t, i);
+                h = h * 31 + table.departure(t, i);
+                h = h * 31 + table.sequence(t, i);
+            }
+        }
+        return h;
+    }
+}
@@ -2,147 +2,370 @@ package it.damose.data;
 
 import it.damose.model.StopTime;
 import it.damose.model.Trip;
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class StopTimesLoader {
 
+    private static final String FILE_NAME = "stop_times.txt";
+    private static final String WORKERS_PROPERTY = "damose.gtfs.workers";
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+
+    // Pool condiviso tra le letture (anche quella di mezzanotte), ricreato solo se
+    // cambia il numero di thread richiesto
+    private static ForkJoinPool pool;
+
+    /**
+     * Colonne di stop_times.txt usate dal loader
+     */
+    private static final class Columns {
+        final int tripId;
+        final int arrival;
+        final int departure;
+        final int stopId;
+        final int sequence;
+
+        Columns(String[] header) {
+            tripId = GtfsCsvScanner.columnIndex(header, "trip_id", 0);
+            arrival = GtfsCsvScanner.columnIndex(header, "arrival_time", 1);
+            departure = GtfsCsvScanner.columnIndex(header, "departure_time", 2);
+            stopId = GtfsCsvScanner.columnIndex(header, "stop_id", 3);
+            sequence = GtfsCsvScanner.columnIndex(header, "stop_sequence", 4);
+        }
+
+        boolean isComplete(GtfsCsvScanner scanner) {
+            return scanner.has(tripId) && scanner.has(arrival) && scanner.has(departure)
+                    && scanner.has(stopId) && scanner.has(sequence);
+        }
+    }
+
     /**
      * Carica tutti gli stop_times dal file stop_times.txt
+     * @return vista in sola lettura sulla tabella colonnare, ordinata per trip
      */
     public static List<StopTime> loadStopTimesFromResources() {
-        List<StopTime> stopTimes = new ArrayList<>();
-
-        InputStream input = StopTimesLoader.class.getClassLoader()
-                .getResourceAsStream("data/rome_static_gtfs/stop_times.txt");
-
-        if (input == null) {
-            System.err.println("stop_times.txt non trovato nelle risorse!");
-            return stopTimes;
-        }
-
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
-            String header = br.readLine(); // Salta intestazione
-            System.out.println("StopTimesLoader - Header: " + header);
-
-            String line;
-            int lineCount = 0;
-            int successCount = 0;
-
-            while ((line = br.readLine()) != null) {
-                lineCount++;
-                if (line.trim().isEmpty()) continue;
-
-                try {
-                    // Split che gestisce virgolette
-                    String[] p = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-
-                    // Pulisce i valori
-                    for (int i = 0; i < p.length; i++) {
-                        p[i] = p[i].replace("\"", "").trim();
-                    }
-
-                    if (p.length >= 5) {
-                        String tripId = p[0];
-                        String arrivalTime = p[1];
-                        String departureTime = p[2];
-                        String stopId = p[3];
-                        int stopSequence = p[4].isEmpty() ? 0 : Integer.parseInt(p[4]);
-
-                        StopTime st = new StopTime(tripId, arrivalTime, departureTime,
-                                stopId, stopSequence);
-                        stopTimes.add(st);
-                        successCount++;
-                    }
-
-                } catch (Exception e) {
-                    if (lineCount <= 10) { // Mostra solo i primi 10 errori
-                        System.err.println("Errore parsing stop_time alla riga " + lineCount);
-                    }
-                }
-            }
+        ParsedStopTimes parsed = parseStopTimes();
+        StopTimeTable table = parsed.toTable();
 
-            System.out.println("========================================");
-            System.out.println("STOP_TIMES LOADER REPORT:");
-            System.out.println("Righe lette: " + lineCount);
-            System.out.println("Stop times caricati: " + successCount);
-            System.out.println("========================================");
+        System.out.println("========================================");
+        System.out.println("STOP_TIMES LOADER REPORT:");
+        System.out.println("Righe lette: " + parsed.size());
+        System.out.println("Stop times caricati: " + table.size());
+        System.out.println("========================================");
 
-        } catch (Exception e) {
-            System.err.println("Errore caricamento stop_times.txt");
-            e.printStackTrace();
+        return table.asList();
+    }
+
+    /**
+     * Carica gli stop_times nella tabella colonnare e collega ogni Trip alle sue righe.
+     * @return la tabella (l'indice di trip è la posizione nella lista trips)
+     */
+    public static StopTimeTable loadAndLinkStopTimes(List<Trip> trips) {
+        return linkStopTimes(parseStopTimes(), trips);
+    }
+
+    /**
+     * Legge stop_times.txt senza bisogno dei Trip, così può girare in parallelo a
+     * trips.txt. Il file viene letto tramite memory mapping e scansionato a livello
+     * di byte: trip_id e stop_id vengono codificati come interi tramite dizionario,
+     * senza creare String per ogni campo.
+     * Il numero di thread si imposta con -Ddamose.gtfs.workers (default: numero di core).
+     */
+    public static ParsedStopTimes parseStopTimes() {
+        return parseStopTimes(defaultWorkers());
+    }
+
+    /**
+     * Come parseStopTimes(), con un numero di thread esplicito.
+     * Il file viene diviso in pezzi allineati a inizio riga, letti in parallelo con
+     * fork/join e poi uniti nell'ordine del file: il risultato è identico a quello
+     * della lettura su un solo thread.
+     */
+    public static ParsedStopTimes parseStopTimes(int workers) {
+        ByteBuffer buffer = mapStopTimes();
+        if (buffer == null) {
+            return new ParsedStopTimes(new StopTimeTable.Builder(), new IdDictionary());
+        }
+
+        GtfsCsvScanner headerScanner = new GtfsCsvScanner(buffer);
+        Columns cols = new Columns(headerScanner.readHeader());
+        int from = headerScanner.position();
+        int to = buffer.limit();
+
+        if (workers <= 1 || to - from < MIN_CHUNK_BYTES * 2) {
+            Chunk chunk = parseRange(buffer, from, to, cols);
+            chunk.builder.remapStops(GtfsIds.STOPS.internAll(chunk.stopIds));
+            return new ParsedStopTimes(chunk.builder, chunk.tripIds);
         }
 
-        return stopTimes;
+        int[] bounds = splitAtLines(buffer, from, to, workers * CHUNKS_PER_WORKER);
+        Chunk[] chunks = new Chunk[bounds.length - 1];
+        pool(workers).invoke(new ChunkTask(buffer, bounds, cols, chunks, 0, chunks.length));
+        return merge(chunks);
     }
 
     /**
-     * Carica gli stop_times e li collega direttamente ai Trip
+     * @return il pool di lettura con il numero di thread dato
      */
-    public static void loadAndLinkStopTimes(List<Trip> trips) {
-        // Crea mappa trip_id -> Trip per accesso veloce
-        Map<String, Trip> tripMap = new HashMap<>();
-        for (Trip trip : trips) {
-            tripMap.put(trip.getId(), trip);
+    private static synchronized ForkJoinPool pool(int workers) {
+        if (pool == null || pool.getParallelism() != workers) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(workers);
         }
+        return pool;
+    }
 
-        InputStream input = StopTimesLoader.class.getClassLoader()
-                .getResourceAsStream("data/rome_static_gtfs/stop_times.txt");
+    /**
+     * @return il numero di thread per la lettura di stop_times.txt
+     */
+    public static int defaultWorkers() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        try {
+            return Math.max(1, Integer.getInteger(WORKERS_PROPERTY, cores));
+        } catch (SecurityException e) {
+            return cores;
+        }
+    }
 
-        if (input == null) {
-            System.err.println("stop_times.txt non trovato nelle risorse!");
-            return;
+    /**
+     * Costruisce la tabella ordinata per trip e collega ogni Trip alle sue righe.
+     * Le righe con un trip_id assente da trips.txt vengono scartate.
+     * @return la tabella (l'indice di trip è la posizione nella lista trips)
+     */
+    public static StopTimeTable linkStopTimes(ParsedStopTimes parsed, List<Trip> trips) {
+        return linkStopTimes(parsed, trips, null);
+    }
+
+    /**
+     * Come linkStopTimes(parsed, trips), ma conserva solo le righe dei trip indicati:
+     * gli altri restano collegati con un intervallo vuoto.
+     * @param keep posizioni nella lista trips da conservare (null = tutti)
+     */
+    public static StopTimeTable linkStopTimes(ParsedStopTimes parsed, List<Trip> trips, BitSet keep) {
+        StopTimeTable table = buildStopTimes(parsed, trips, keep);
+        TimetableRef timetable = new TimetableRef(table);
+        for (int i = 0; i < trips.size(); i++) {
+            trips.get(i).attachStopTimes(timetable, i);
         }
+        return table;
+    }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
-            br.readLine(); // Salta intestazione
+    /**
+     * Come linkStopTimes(parsed, trips, keep), senza collegare i Trip: per sostituire
+     * la tabella di trip già collegati a un TimetableRef.
+     */
+    public static StopTimeTable buildStopTimes(ParsedStopTimes parsed, List<Trip> trips, BitSet keep) {
+        // Indice del trip_id letto in stop_times.txt -> posizione nella lista
+        int[] mapping = new int[parsed.tripIds.size()];
+        Arrays.fill(mapping, -1);
+        int[] tripIdArray = new int[trips.size()];
+        for (int i = 0; i < trips.size(); i++) {
+            tripIdArray[i] = trips.get(i).getIndex();
+            if (keep != null && !keep.get(i)) {
+                continue;
+            }
+            int index = parsed.tripIds.indexOf(trips.get(i).getId());
+            if (index >= 0) {
+                mapping[index] = i;
+            }
+        }
 
-            String line;
-            int linked = 0;
-            int notFound = 0;
+        StopTimeTable table = parsed.builder.build(tripIdArray, mapping);
 
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
+        int notFound = parsed.builder.size() - table.size();
+        System.out.println("Stop times collegati ai trip: " + table.size()
+                + " (" + table.patternCount() + " pattern di fermate distinti)");
+        if (notFound > 0) {
+            System.out.println((keep != null ? "Stop times esclusi (fuori dalla finestra o senza trip): "
+                    : "Stop times senza trip corrispondente: ") + notFound);
+        }
+        return table;
+    }
 
-                try {
-                    String[] p = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
+    /**
+     * Righe di stop_times.txt lette ma non ancora collegate ai Trip.
+     * Le fermate sono già indici di GtfsIds.STOPS, i trip sono numerati in ordine di file.
+     */
+    public static final class ParsedStopTimes {
+        private final StopTimeTable.Builder builder;
+        private final IdDictionary tripIds;
 
-                    for (int i = 0; i < p.length; i++) {
-                        p[i] = p[i].replace("\"", "").trim();
-                    }
+        private ParsedStopTimes(StopTimeTable.Builder builder, IdDictionary tripIds) {
+            this.builder = builder;
+            this.tripIds = tripIds;
+        }
 
-                    if (p.length >= 5) {
-                        String tripId = p[0];
-                        String arrivalTime = p[1];
-                        String departureTime = p[2];
-                        String stopId = p[3];
-                        int stopSequence = p[4].isEmpty() ? 0 : Integer.parseInt(p[4]);
+        public int size() {
+            return builder.size();
+        }
 
-                        Trip trip = tripMap.get(tripId);
+        /**
+         * Tabella con i trip nell'ordine di stop_times.txt (senza collegamento ai Trip)
+         */
+        StopTimeTable toTable() {
+            return builder.build(GtfsIds.TRIPS.internAll(tripIds));
+        }
+    }
 
-                        if (trip != null) {
-                            StopTime st = new StopTime(tripId, arrivalTime, departureTime,
-                                    stopId, stopSequence);
-                            trip.addStopTime(st);
-                            linked++;
-                        } else {
-                            notFound++;
-                        }
-                    }
+    /**
+     * Righe di un pezzo di file, con trip e fermate numerati localmente
+     */
+    private static final class Chunk {
+        final StopTimeTable.Builder builder = new StopTimeTable.Builder();
+        final IdDictionary tripIds = new IdDictionary();
+        final IdDictionary stopIds = new IdDictionary();
+    }
+
+    /**
+     * Legge i pezzi [lo, hi) dividendo a metà finché ne resta uno solo
+     */
+    private static final class ChunkTask extends RecursiveAction {
+        private final ByteBuffer buffer;
+        private final int[] bounds;
+        private final Columns cols;
+        private final Chunk[] out;
+        private final int lo;
+        private final int hi;
+
+        ChunkTask(ByteBuffer buffer, int[] bounds, Columns cols, Chunk[] out, int lo, int hi) {
+            this.buffer = buffer;
+            this.bounds = bounds;
+            this.cols = cols;
+            this.out = out;
+            this.lo = lo;
+            this.hi = hi;
+        }
 
-                } catch (Exception e) {
-                    // Ignora errori di parsing
-                }
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                out[lo] = parseRange(buffer, bounds[lo], bounds[hi], cols);
+                return;
             }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ChunkTask(buffer, bounds, cols, out, lo, mid),
+                    new ChunkTask(buffer, bounds, cols, out, mid, hi));
+        }
+    }
+
+    /**
+     * Divide [from, to) in al più n intervalli che iniziano tutti a inizio riga.
+     * I campi tra virgolette con a capo al loro interno non sono gestiti
+     * (in stop_times.txt non compaiono).
+     */
+    private static int[] splitAtLines(ByteBuffer buffer, int from, int to, int n) {
+        int chunkSize = Math.max(MIN_CHUNK_BYTES, (to - from) / n + 1);
+        int[] bounds = new int[n + 1];
+        int count = 0;
+        bounds[count++] = from;
+        int pos = from;
+        while (count < n) {
+            pos += chunkSize;
+            if (pos >= to) break;
+            while (pos < to && buffer.get(pos - 1) != '\n') {
+                pos++;
+            }
+            if (pos >= to) break;
+            bounds[count++] = pos;
+        }
+        bounds[count++] = to;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * Legge le righe di stop_times.txt contenute in [from, to)
+     */
+    private static Chunk parseRange(ByteBuffer buffer, int from, int to, Columns cols) {
+        Chunk chunk = new Chunk();
+        GtfsCsvScanner scanner = new GtfsCsvScanner(buffer, from, to);
+
+        int lastStart = -1;
+        int lastEnd = -1;
+        int lastTrip = -1;
 
-            System.out.println("Stop times collegati ai trip: " + linked);
-            if (notFound > 0) {
-                System.out.println("Stop times senza trip corrispondente: " + notFound);
+        while (scanner.nextRecord()) {
+            if (!cols.isComplete(scanner)) {
+                continue; // Ignora righe malformate
             }
 
+            // Le righe dello stesso trip sono consecutive: evita la ricerca nel dizionario
+            int start = scanner.start(cols.tripId);
+            int end = scanner.end(cols.tripId);
+            if (lastStart < 0 || !sameField(buffer, lastStart, lastEnd, start, end)) {
+                lastTrip = chunk.tripIds.intern(buffer, start, end);
+                lastStart = start;
+                lastEnd = end;
+            }
+
+            addRow(chunk.builder, scanner, cols, lastTrip, chunk.stopIds);
+        }
+        return chunk;
+    }
+
+    /**
+     * Unisce i pezzi nell'ordine del file. I trip vengono numerati in ordine di
+     * prima comparsa, come nella lettura su un solo thread; le fermate passano
+     * al dizionario globale.
+     */
+    private static ParsedStopTimes merge(Chunk[] chunks) {
+        IdDictionary tripIds = new IdDictionary();
+        int rows = 0;
+        for (Chunk chunk : chunks) {
+            rows += chunk.builder.size();
+        }
+        StopTimeTable.Builder builder = new StopTimeTable.Builder(rows);
+
+        for (Chunk chunk : chunks) {
+            builder.addAll(chunk.builder, remap(chunk.tripIds, tripIds), GtfsIds.STOPS.internAll(chunk.stopIds));
+        }
+        return new ParsedStopTimes(builder, tripIds);
+    }
+
+    private static int[] remap(IdDictionary local, IdDictionary global) {
+        int[] mapping = new int[local.size()];
+        for (int i = 0; i < mapping.length; i++) {
+            mapping[i] = global.intern(local.get(i));
+        }
+        return mapping;
+    }
+
+    private static ByteBuffer mapStopTimes() {
+        try {
+            ByteBuffer buffer = GtfsFiles.map(FILE_NAME);
+            if (buffer == null) {
+                System.err.println("stop_times.txt non trovato nelle risorse!");
+            }
+            return buffer;
         } catch (Exception e) {
-            System.err.println("Errore collegamento stop_times");
+            System.err.println("Errore caricamento stop_times.txt");
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void addRow(StopTimeTable.Builder builder, GtfsCsvScanner scanner, Columns cols,
+                               int trip, IdDictionary stopIds) {
+        int stop = stopIds.intern(scanner.buffer(), scanner.start(cols.stopId), scanner.end(cols.stopId));
+        builder.add(trip, stop,
+                scanner.getTimeSeconds(cols.arrival),
+                scanner.getTimeSeconds(cols.departure),
+                scanner.getInt(cols.sequence, 0));
+    }
+
+    private static boolean sameField(ByteBuffer buffer, int aStart, int aEnd, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        for (int i = aEnd - aStart - 1; i >= 0; i--) {
+            if (buffer.get(aStart + i) != buffer.get(bStart + i)) {
+                return false;
+            }
         }
+        return true;
     }
-}
\ No newline at end of file
+}
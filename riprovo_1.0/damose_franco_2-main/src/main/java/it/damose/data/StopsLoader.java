@@ -11,7 +11,7 @@ public class StopsLoader {
     public static Map<String, Stop> loadStopsFromResources() {
         Map<String, Stop> stops = new HashMap<>();
 
-        InputStream input = StopsLoader.class.getClassLoader().getResourceAsStream("data/rome_static_gtfs/stops.txt");
+        InputStream input = GtfsFiles.open("stops.txt");
 
         if (input == null) {
             System.err.println("stops.txt non trovato nelle risorse!");
@@ -41,16 +41,17 @@ public class StopsLoader {
 
 
     public static void linkStopsToRoutes(List<Stop> stops, List<Route> routes) {
-        Map<String, Stop> stopMap = new HashMap<>();
+        // Fermate per indice in GtfsIds.STOPS
+        Stop[] stopByIndex = new Stop[GtfsIds.STOPS.size()];
         for (Stop s : stops) {
-            stopMap.put(s.getId(), s);
+            stopByIndex[s.getIndex()] = s;
         }
 
         for (Route r : routes) {
-            for (String stopId : r.getAllStopIds()) {
-                Stop s = stopMap.get(stopId);
+            for (int stopIndex : r.getAllStopIndexes()) {
+                Stop s = stopIndex < stopByIndex.length ? stopByIndex[stopIndex] : null;
                 if (s != null) {
-                    s.addRoute(r.getId());
+                    s.addRoute(r.getIndex());
                 }
             }
         }
@@ -0,0 +1,27 @@
+package it.damose.data;
+
+/**
+ * Riferimento condiviso alla tabella degli stop_times in uso. I Trip vi sono
+ * collegati una volta sola, con la loro posizione (che non cambia tra una tabella
+ * e l'altra): sostituire la tabella, ad esempio allo spostamento della finestra di
+ * servizio, è una sola scrittura volatile, senza toccare i Trip condivisi.
+ */
+public final class TimetableRef {
+
+    private volatile StopTimeTable table;
+
+    public TimetableRef(StopTimeTable table) {
+        this.table = table;
+    }
+
+    public StopTimeTable get() {
+        return table;
+    }
+
+    /**
+     * Pubblica la nuova tabella: i lettori la vedono dalla loro prossima lettura
+     */
+    public void set(StopTimeTable table) {
+        this.table = table;
+    }
+}
@@ -15,8 +15,7 @@ public class TripLoader {
     public static List<Trip> loadTripsFromResources() {
         List<Trip> trips = new ArrayList<>();
 
-        InputStream input = TripLoader.class.getClassLoader()
-                .getResourceAsStream("data/rome_static_gtfs/trips.txt");
+        InputStream input = GtfsFiles.open("trips.txt");
 
         if (input == null) {
             System.err.println("trips.txt non trovato nelle risorse!");
@@ -81,16 +80,18 @@ public class TripLoader {
      * Collega i trip alle loro route
      */
     public static void linkTripsToRoutes(List<Trip> trips, List<Route> routes) {
-        Map<String, Route> routeMap = new HashMap<>();
+        // Route per indice in GtfsIds.ROUTES
+        Route[] routeByIndex = new Route[GtfsIds.ROUTES.size()];
         for (Route route : routes) {
-            routeMap.put(route.getId(), route);
+            routeByIndex[route.getIndex()] = route;
         }
 
         int linkedCount = 0;
         int notFoundCount = 0;
 
         for (Trip trip : trips) {
-            Route route = routeMap.get(trip.getRouteId());
+            int routeIndex = trip.getRouteIndex();
+            Route route = routeIndex >= 0 && routeIndex < routeByIndex.length ? routeByIndex[routeIndex] : null;
             if (route != null) {
                 route.addTrip(trip);
                 linkedCount++;
@@ -0,0 +1,105 @@
+package it.damose.data;
+
+import java.util.Arrays;
+
+/**
+ * Intervalli [prima partenza, ultimo arrivo] dei trip, in secondi del giorno di
+ * servizio, per trovare quelli in viaggio a un certo orario senza scorrere tutta la
+ * tabella. I trip sono ordinati per orario di partenza: chi avanza nel tempo (il
+ * simulatore) tiene un cursore e aggiunge solo i trip partiti dall'orario
+ * precedente (upperBound), scartando quelli già arrivati.
+ */
+public final class TripSpanIndex {
+
+    private final StopTimeTable table;
+
+    // In ordine di partenza: trip della tabella, partenza e arrivo
+    private final int[] trips;
+    private final int[] starts;
+    private final int[] ends;
+
+    private TripSpanIndex(StopTimeTable table, int[] trips, int[] starts, int[] ends) {
+        this.table = table;
+        this.trips = trips;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Costruisce l'indice sui trip con almeno due fermate e un orario di arrivo
+     * all'ultima. Una prima fermata senza orario conta come partenza a inizio giornata.
+     */
+    public static TripSpanIndex build(StopTimeTable table) {
+        // Partenza e trip nello stesso long: l'ordinamento è un sort di primitivi
+        long[] entries = new long[table.tripCount()];
+        int count = 0;
+        for (int t = 0; t < table.tripCount(); t++) {
+            int from = table.start(t);
+            int to = table.end(t);
+            if (to - from < 2 || table.arrival(t, to - 1) < 0) continue;
+            int start = Math.max(0, table.arrival(t, from));
+            entries[count++] = ((long) start << 32) | t;
+        }
+        Arrays.sort(entries, 0, count);
+
+        int[] trips = new int[count];
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        for (int i = 0; i < count; i++) {
+            int t = (int) entries[i];
+            trips[i] = t;
+            starts[i] = (int) (entries[i] >>> 32);
+            ends[i] = table.arrival(t, table.end(t) - 1);
+        }
+        return new TripSpanIndex(table, trips, starts, ends);
+    }
+
+    /**
+     * @return la tabella da cui è stato costruito l'indice
+     */
+    public StopTimeTable table() {
+        return table;
+    }
+
+    public int size() {
+        return trips.length;
+    }
+
+    /**
+     * @return il trip in posizione i, nell'ordine di partenza
+     */
+    public int trip(int i) {
+        return trips[i];
+    }
+
+    /**
+     * @return la partenza del trip in posizione i
+     */
+    public int start(int i) {
+        return starts[i];
+    }
+
+    /**
+     * @return l'ultimo arrivo del trip in posizione i
+     */
+    public int end(int i) {
+        return ends[i];
+    }
+
+    /**
+     * @return la prima posizione con partenza > time (size() se non ce ne sono)
+     */
+    public int upperBound(int time) {
+        int lo = 0;
+        int hi = starts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
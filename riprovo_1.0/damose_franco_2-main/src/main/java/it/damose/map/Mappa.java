@@ -2,6 +2,7 @@ package it.damose.map;
 
 import it.damose.controller.ConnectionManager;
 import it.damose.controller.StopController;
+import it.damose.controller.VehicleSimulator;
 import it.damose.model.*;
 import it.damose.realtime.RealtimeManager;
 import javax.swing.*;
@@ -31,9 +32,6 @@ public class Mappa extends JPanel {
     private RealtimeManager realtimeManager;
     private StopController stopController;
 
-    private List<VehiclePosition> simulatedVehicleCache = new ArrayList<>();
-    private long lastStaticCacheTime = 0;
-
     private Route currentlyFilteredRoute = null;
     private Stop selectedStop = null;
 
@@ -41,6 +39,11 @@ public class Mappa extends JPanel {
     private JPanel currentPopup = null;
     private Stop hoveredStop = null;
 
+    // Fermate vicine all'ultimo click sulla mappa (senza linea selezionata)
+    private static final double NEARBY_RADIUS_METERS = 300;
+    private static final int NEARBY_MAX = 10;
+    private List<Stop> nearbyStops = new ArrayList<>();
+
     public Mappa() {
         tilesManager = new TilesManager();
         setPreferredSize(new Dimension(800, 600));
@@ -74,6 +77,8 @@ public class Mappa extends JPanel {
                 Stop clickedStop = findStopAtPoint(e.getPoint());
                 if (clickedStop != null) {
                     showStopPopup(clickedStop, e.getPoint());
+                } else if (currentlyFilteredRoute == null && stopController != null) {
+                    showStopsNear(e.getPoint());
                 }
             }
         });
@@ -140,6 +145,7 @@ public class Mappa extends JPanel {
 
     public void setFilteredRoute(Route route) {
         this.currentlyFilteredRoute = route;
+        nearbyStops = new ArrayList<>();
 
         // Chiudi popup quando cambia linea
         if (currentPopup != null) {
@@ -148,7 +154,7 @@ public class Mappa extends JPanel {
         }
 
         if (route != null && stopController != null) {
-            centerMapOnRoute(route);
+            centerOnRoute(route);
         }
 
         repaint();
@@ -189,11 +195,14 @@ public class Mappa extends JPanel {
      * Trova la fermata cliccata/hoveredata
      */
     private Stop findStopAtPoint(Point clickPoint) {
-        if (currentlyFilteredRoute == null || stopController == null) {
+        if (stopController == null) {
             return null;
         }
 
-        List<Stop> stops = getOrderedStopsForRoute(currentlyFilteredRoute);
+        // Senza linea selezionata sono cliccabili le fermate vicine all'ultimo click
+        List<Stop> stops = currentlyFilteredRoute != null
+                ? getOrderedStopsForRoute(currentlyFilteredRoute)
+                : nearbyStops;
 
         for (Stop stop : stops) {
             Point p = latLonToScreenPixel(stop.getLat(), stop.getLon());
@@ -212,6 +221,23 @@ public class Mappa extends JPanel {
         return null;
     }
 
+    /**
+     * Click su un punto vuoto: evidenzia le fermate entro NEARBY_RADIUS_METERS
+     * (dall'indice spaziale del controller) e apre il popup della più vicina
+     */
+    private void showStopsNear(Point clickPoint) {
+        double[] latLon = screenPixelToLatLon(clickPoint);
+        nearbyStops = stopController.getNearestStops(latLon[0], latLon[1], NEARBY_MAX, NEARBY_RADIUS_METERS);
+
+        if (nearbyStops.isEmpty()) {
+            System.out.println("Nessuna fermata entro " + (int) NEARBY_RADIUS_METERS + " m dal punto cliccato");
+            repaint();
+            return;
+        }
+        Stop nearest = nearbyStops.get(0);
+        showStopPopup(nearest, latLonToScreenPixel(nearest.getLat(), nearest.getLon()));
+    }
+
     /**
      * Mostra il popup con le info della fermata
      */
@@ -257,91 +283,38 @@ public class Mappa extends JPanel {
     // === FERMATE ORDINATE (IMPORTANTE!) ===
 
     /**
-     * Ottiene le fermate NELL'ORDINE CORRETTO del primo trip
+     * Ottiene le fermate NELL'ORDINE CORRETTO, dalla topologia precalcolata della linea
      */
     private List<Stop> getOrderedStopsForRoute(Route route) {
-        if (route == null || route.getTrips().isEmpty()) {
-            return new ArrayList<>();
-        }
-
-        Trip firstTrip = route.getTrips().get(0);
-        List<StopTime> orderedStopTimes = new ArrayList<>(firstTrip.getStopTimes());
-
-        if (orderedStopTimes.isEmpty()) {
-            return new ArrayList<>();
-        }
-
-        // Ordina per sequence
-        orderedStopTimes.sort((st1, st2) ->
-                Integer.compare(st1.getStopSequence(), st2.getStopSequence()));
-
-        List<Stop> orderedStops = new ArrayList<>();
-        Set<String> addedStopIds = new HashSet<>();
-
-        for (StopTime st : orderedStopTimes) {
-            String stopId = st.getStopId();
-
-            if (!addedStopIds.contains(stopId)) {
-                Stop stop = stopController.getStopById(stopId);
-                if (stop != null) {
-                    orderedStops.add(stop);
-                    addedStopIds.add(stopId);
-                }
-            }
+        if (route == null) {
+            return Collections.emptyList();
         }
-
-        return orderedStops;
+        return stopController.getTopology(route).getStops();
     }
 
     // === CENTRATURA MAPPA ===
 
-    private void centerMapOnRoute(Route route) {
-        List<ShapePoint> shapePoints = stopController.getShapeForRoute(route);
-
-        if (shapePoints.size() >= 2) {
-            double minLat = Double.MAX_VALUE;
-            double maxLat = -Double.MAX_VALUE;
-            double minLon = Double.MAX_VALUE;
-            double maxLon = -Double.MAX_VALUE;
-
-            for (ShapePoint sp : shapePoints) {
-                minLat = Math.min(minLat, sp.getLat());
-                maxLat = Math.max(maxLat, sp.getLat());
-                minLon = Math.min(minLon, sp.getLon());
-                maxLon = Math.max(maxLon, sp.getLon());
-            }
+    /**
+     * Centra la mappa sul riquadro della linea, con lo zoom che la contiene tutta
+     */
+    public void centerOnRoute(Route route) {
+        if (route == null || stopController == null) {
+            return;
+        }
+        RouteTopology topology = stopController.getTopology(route);
+        if (!topology.hasBounds()) {
+            return;
+        }
 
-            centerLat = (minLat + maxLat) / 2.0;
-            centerLon = (minLon + maxLon) / 2.0;
+        centerLat = (topology.getMinLat() + topology.getMaxLat()) / 2.0;
+        centerLon = (topology.getMinLon() + topology.getMaxLon()) / 2.0;
 
-            double latSpan = maxLat - minLat;
-            double lonSpan = maxLon - minLon;
+        double latSpan = topology.getMaxLat() - topology.getMinLat();
+        double lonSpan = topology.getMaxLon() - topology.getMinLon();
+        if (latSpan > 0 || lonSpan > 0) {
             zoom = calculateOptimalZoom(latSpan, lonSpan);
-
-        } else {
-            List<Stop> stops = getOrderedStopsForRoute(route);
-
-            if (stops.size() >= 2) {
-                double minLat = Double.MAX_VALUE;
-                double maxLat = -Double.MAX_VALUE;
-                double minLon = Double.MAX_VALUE;
-                double maxLon = -Double.MAX_VALUE;
-
-                for (Stop stop : stops) {
-                    minLat = Math.min(minLat, stop.getLat());
-                    maxLat = Math.max(maxLat, stop.getLat());
-                    minLon = Math.min(minLon, stop.getLon());
-                    maxLon = Math.max(maxLon, stop.getLon());
-                }
-
-                centerLat = (minLat + maxLat) / 2.0;
-                centerLon = (minLon + maxLon) / 2.0;
-
-                double latSpan = maxLat - minLat;
-                double lonSpan = maxLon - minLon;
-                zoom = calculateOptimalZoom(latSpan, lonSpan);
-            }
         }
+        repaint();
     }
 
     private int calculateOptimalZoom(double latSpan, double lonSpan) {
@@ -374,6 +347,7 @@ public class Mappa extends JPanel {
         drawTiles(g2d, width, height);
         drawRoutePath(g2d);
         drawRouteStops(g2d);
+        drawNearbyStops(g2d);
 
         boolean isCurrentlyLive = (realtimeManager != null &&
                 ConnectionManager.getInstance().isOnline() &&
@@ -442,25 +416,24 @@ public class Mappa extends JPanel {
         g2d.setStroke(new BasicStroke(5.0f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
         g2d.setColor(new Color(routeColor.getRed(), routeColor.getGreen(), routeColor.getBlue(), 180));
 
-        List<ShapePoint> shapePoints = stopController.getShapeForRoute(currentlyFilteredRoute);
-
-        if (shapePoints.size() >= 2) {
-            drawSmoothPath(g2d, shapePoints);
-        } else {
-            List<Stop> stops = getOrderedStopsForRoute(currentlyFilteredRoute);
-            if (stops.size() >= 2) {
-                drawStopPath(g2d, stops);
+        // Un percorso per direzione, nella versione semplificata per lo zoom corrente
+        for (RouteTopology.Direction direction : stopController.getTopology(currentlyFilteredRoute).getDirections()) {
+            ShapePath shape = direction.getShape().forZoom(zoom);
+            if (shape.size() >= 2) {
+                drawSmoothPath(g2d, shape);
+            } else if (direction.getStops().size() >= 2) {
+                drawStopPath(g2d, direction.getStops());
             }
         }
     }
 
-    private void drawSmoothPath(Graphics2D g2d, List<ShapePoint> shapePoints) {
+    private void drawSmoothPath(Graphics2D g2d, ShapePath shape) {
         Path2D.Double path = new Path2D.Double();
-        Point startPoint = latLonToScreenPixel(shapePoints.get(0).getLat(), shapePoints.get(0).getLon());
+        Point startPoint = latLonToScreenPixel(shape.getLat(0), shape.getLon(0));
         path.moveTo(startPoint.x, startPoint.y);
 
-        for (int i = 1; i < shapePoints.size(); i++) {
-            Point nextPoint = latLonToScreenPixel(shapePoints.get(i).getLat(), shapePoints.get(i).getLon());
+        for (int i = 1; i < shape.size(); i++) {
+            Point nextPoint = latLonToScreenPixel(shape.getLat(i), shape.getLon(i));
             path.lineTo(nextPoint.x, nextPoint.y);
         }
 
@@ -524,6 +497,34 @@ public class Mappa extends JPanel {
         }
     }
 
+    private void drawNearbyStops(Graphics2D g2d) {
+        if (nearbyStops.isEmpty()) {
+            return;
+        }
+
+        Color stopColor = new Color(255, 255, 255, 220);
+        Color stopBorder = new Color(0, 90, 170);
+        Color hoverColor = new Color(255, 215, 0, 200);
+
+        for (Stop stop : nearbyStops) {
+            Point p = latLonToScreenPixel(stop.getLat(), stop.getLon());
+            int size = 8;
+
+            if (stop == hoveredStop) {
+                g2d.setColor(hoverColor);
+                g2d.fillOval(p.x - 10, p.y - 10, 20, 20);
+                size = 10;
+            }
+
+            g2d.setColor(stopColor);
+            g2d.fillOval(p.x - size / 2, p.y - size / 2, size, size);
+
+            g2d.setColor(stopBorder);
+            g2d.setStroke(new BasicStroke(2.0f));
+            g2d.drawOval(p.x - size / 2, p.y - size / 2, size, size);
+        }
+    }
+
     private Color parseRouteColor(String hexColor) {
         if (hexColor == null || hexColor.isEmpty()) {
             return new Color(255, 0, 0);
@@ -604,56 +605,48 @@ public class Mappa extends JPanel {
     private void drawStaticVehicles(Graphics2D g2d) {
         if (stopController == null) return;
 
-        long now = System.currentTimeMillis();
-
-        if (now - lastStaticCacheTime > 10000) {
-            lastStaticCacheTime = now;
-            new Thread(() -> {
-                simulatedVehicleCache = stopController.getSimulatedVehiclePositions();
-            }).start();
-        }
+        // Copia pubblicata dal thread della simulazione: il disegno non la aspetta
+        VehicleSimulator.Positions vehicles = stopController.getSimulatedPositions();
 
         AffineTransform oldTransform = g2d.getTransform();
         g2d.setFont(new Font("Arial", Font.BOLD, 10));
 
-        synchronized (simulatedVehicleCache) {
-            for (VehiclePosition vehicle : simulatedVehicleCache) {
-                if (currentlyFilteredRoute != null &&
-                        !vehicle.getRouteId().equals(currentlyFilteredRoute.getId())) {
-                    continue;
-                }
+        for (int i = 0; i < vehicles.size(); i++) {
+            if (currentlyFilteredRoute != null &&
+                    vehicles.route(i) != currentlyFilteredRoute.getIndex()) {
+                continue;
+            }
 
-                Point p = latLonToScreenPixel(vehicle.getLatitude(), vehicle.getLongitude());
-                int x = p.x;
-                int y = p.y;
-                float bearing = vehicle.getBearing();
+            Point p = latLonToScreenPixel(vehicles.lat(i), vehicles.lon(i));
+            int x = p.x;
+            int y = p.y;
+            float bearing = vehicles.bearing(i);
 
-                Route route = stopController.getRouteById(vehicle.getRouteId());
-                String routeName = (route != null) ? route.getName() : vehicle.getRouteId();
+            Route route = stopController.getRouteByIndex(vehicles.route(i));
+            String routeName = (route != null) ? route.getName() : "?";
 
-                g2d.translate(x, y);
-                if (bearing != -1f) {
-                    g2d.rotate(Math.toRadians(bearing));
-                }
+            g2d.translate(x, y);
+            if (bearing != -1f) {
+                g2d.rotate(Math.toRadians(bearing));
+            }
 
-                Polygon triangle = new Polygon();
-                triangle.addPoint(0, -8);
-                triangle.addPoint(-6, 6);
-                triangle.addPoint(6, 6);
+            Polygon triangle = new Polygon();
+            triangle.addPoint(0, -8);
+            triangle.addPoint(-6, 6);
+            triangle.addPoint(6, 6);
 
-                g2d.setColor(Color.DARK_GRAY);
-                g2d.fill(triangle);
-                g2d.setColor(Color.BLACK);
-                g2d.setStroke(new BasicStroke(1.5f));
-                g2d.draw(triangle);
+            g2d.setColor(Color.DARK_GRAY);
+            g2d.fill(triangle);
+            g2d.setColor(Color.BLACK);
+            g2d.setStroke(new BasicStroke(1.5f));
+            g2d.draw(triangle);
 
-                g2d.setTransform(oldTransform);
+            g2d.setTransform(oldTransform);
 
-                g2d.setColor(Color.WHITE);
-                g2d.fillRoundRect(x + 10, y - 6, routeName.length() * 7, 14, 4, 4);
-                g2d.setColor(Color.BLACK);
-                g2d.drawString(routeName, x + 12, y + 4);
-            }
+            g2d.setColor(Color.WHITE);
+            g2d.fillRoundRect(x + 10, y - 6, routeName.length() * 7, 14, 4, 4);
+            g2d.setColor(Color.BLACK);
+            g2d.drawString(routeName, x + 12, y + 4);
         }
 
         g2d.setTransform(oldTransform);
@@ -696,6 +689,18 @@ public class Mappa extends JPanel {
             g2d.drawString("Linea: " + currentlyFilteredRoute.getName(), 20, 85);
         }
     }
+    /**
+     * Coordinate del punto dello schermo, con la stessa approssimazione usata per il
+     * trascinamento (metri per pixel al centro della mappa)
+     * @return {lat, lon}
+     */
+    private double[] screenPixelToLatLon(Point p) {
+        double metersPerPixel = 156543.03392 * Math.cos(Math.toRadians(centerLat)) / Math.pow(2, zoom);
+        double lat = centerLat - (p.y - getHeight() / 2.0) * metersPerPixel / 111320.0;
+        double lon = centerLon + (p.x - getWidth() / 2.0) * metersPerPixel / (111320.0 * Math.cos(Math.toRadians(centerLat)));
+        return new double[]{lat, lon};
+    }
+
         private Point latLonToScreenPixel(double lat, double lon) {
             int width = getWidth();
             int height = getHeight();
@@ -1,23 +1,32 @@
 package it.damose.model;
 
+import it.damose.data.GtfsIds;
+
 /**
  * POJO (Modello) che rappresenta una singola previsione di arrivo in tempo reale
  * per una fermata.
  */
 public class RealtimeArrival {
 
-    private final String routeId;
+    private final int routeIndex; // indice in GtfsIds.ROUTES, -1 se la linea non è nel feed statico
+    private final String unknownRouteId; // route_id del feed realtime quando routeIndex è -1
     private final long arrivalTime; // Timestamp UNIX (in secondi)
     private final int delay; // Ritardo in secondi
 
     public RealtimeArrival(String routeId, long arrivalTime, int delay) {
-        this.routeId = routeId;
+        // Solo ricerca: gli id sconosciuti del feed realtime non entrano nel dizionario globale
+        this.routeIndex = GtfsIds.ROUTES.indexOf(routeId);
+        this.unknownRouteId = routeIndex < 0 ? routeId : null;
         this.arrivalTime = arrivalTime;
         this.delay = delay;
     }
 
     public String getRouteId() {
-        return routeId;
+        return routeIndex >= 0 ? GtfsIds.ROUTES.get(routeIndex) : unknownRouteId;
+    }
+
+    public int getRouteIndex() {
+        return routeIndex;
     }
 
     /**
@@ -1,15 +1,17 @@
 package it.damose.model;
 
+import it.damose.data.GtfsIds;
+
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Rappresenta una linea di trasporto pubblico
  */
 public class Route {
-    private final String id;
+    private final int index; // indice in GtfsIds.ROUTES
     private final String agencyId;
     private final String shortName;
     private final String longName;
@@ -18,12 +20,15 @@ public class Route {
     private final String routeColor;
     private final String routeTextColor;
 
-    private final List<String> stopIds = new ArrayList<>();
+    // Fermate servite dai trip, come indici in GtfsIds.STOPS (in ordine di comparsa)
+    private final BitSet stopSet = new BitSet();
+    private int[] stopIndexes = new int[16];
+    private int stopCount;
     private final List<Trip> trips = new ArrayList<>();
 
     public Route(String id, String agencyId, String shortName, String longName,
                  int routeType, String routeUrl, String routeColor, String routeTextColor) {
-        this.id = id;
+        this.index = GtfsIds.ROUTES.intern(id);
         this.agencyId = agencyId;
         this.shortName = shortName;
         this.longName = longName;
@@ -69,7 +74,11 @@ public class Route {
     }
 
     public String getId() {
-        return id;
+        return GtfsIds.ROUTES.get(index);
+    }
+
+    public int getIndex() {
+        return index;
     }
 
     public String getAgencyId() {
@@ -107,7 +116,7 @@ public class Route {
         if (!longName.isEmpty()) {
             return longName;
         }
-        return id;
+        return getId();
     }
 
     public String getType() {
@@ -125,23 +134,37 @@ public class Route {
     }
 
     public void addStopId(String stopId) {
-        if (!stopIds.contains(stopId)) {
-            stopIds.add(stopId);
+        addStopIndex(GtfsIds.STOPS.intern(stopId));
+    }
+
+    public void addStopIndex(int stopIndex) {
+        if (stopSet.get(stopIndex)) return;
+        stopSet.set(stopIndex);
+        if (stopCount == stopIndexes.length) {
+            stopIndexes = Arrays.copyOf(stopIndexes, stopCount * 2);
         }
+        stopIndexes[stopCount++] = stopIndex;
     }
 
     public List<String> getAllStopIds() {
-        Set<String> allStopIds = new HashSet<>();
-        for (Trip trip : trips) {
-            allStopIds.addAll(trip.getStopIds());
+        List<String> ids = new ArrayList<>(stopCount);
+        for (int i = 0; i < stopCount; i++) {
+            ids.add(GtfsIds.STOPS.get(stopIndexes[i]));
         }
-        return new ArrayList<>(allStopIds);
+        return ids;
+    }
+
+    /**
+     * @return gli indici in GtfsIds.STOPS delle fermate della linea
+     */
+    public int[] getAllStopIndexes() {
+        return Arrays.copyOf(stopIndexes, stopCount);
     }
 
     public void addTrip(Trip trip) {
         trips.add(trip);
-        for (String stopId : trip.getStopIds()) {
-            addStopId(stopId);
+        for (int stopIndex : trip.getStopIndexes()) {
+            addStopIndex(stopIndex);
         }
     }
 
@@ -0,0 +1,213 @@
+package it.damose.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+/**
+ * Topologia di una linea, calcolata una volta e poi solo letta: per ogni
+ * direction_id la sequenza ordinata delle fermate e lo shape rappresentativo,
+ * più il riquadro (bounding box) che contiene tutto il percorso.
+ * Come sequenza canonica di una direzione si usa il trip con più fermate, con le
+ * fermate nell'ordine delle righe (un percorso circolare ripassa dalle stesse).
+ * Dello shape si conserva solo l'indice: il percorso si legge quando serve dalla
+ * cache limitata degli shape, così le topologie in cache non la scavalcano.
+ */
+public final class RouteTopology {
+
+    /**
+     * Una direzione della linea (direction_id di trips.txt)
+     */
+    public static final class Direction {
+        private final int directionId;
+        private final String headsign;
+        private final List<Stop> stops;
+        private final int shapeIndex;
+        private final IntFunction<ShapePath> shapeLookup;
+
+        private Direction(int directionId, String headsign, List<Stop> stops,
+                          int shapeIndex, IntFunction<ShapePath> shapeLookup) {
+            this.directionId = directionId;
+            this.headsign = headsign;
+            this.stops = stops;
+            this.shapeIndex = shapeIndex;
+            this.shapeLookup = shapeLookup;
+        }
+
+        public int getDirectionId() {
+            return directionId;
+        }
+
+        public String getHeadsign() {
+            return headsign;
+        }
+
+        /**
+         * @return le fermate nell'ordine di percorrenza (lista non modificabile)
+         */
+        public List<Stop> getStops() {
+            return stops;
+        }
+
+        /**
+         * @return l'indice in GtfsIds.SHAPES dello shape rappresentativo, o -1
+         */
+        public int getShapeIndex() {
+            return shapeIndex;
+        }
+
+        /**
+         * @return lo shape rappresentativo, o ShapePath.EMPTY se il trip non ne ha
+         */
+        public ShapePath getShape() {
+            return shapeIndex >= 0 ? shapeLookup.apply(shapeIndex) : ShapePath.EMPTY;
+        }
+    }
+
+    private final int routeIndex;
+    private final List<Direction> directions;
+    private final List<Stop> stops;
+
+    private final double minLat;
+    private final double maxLat;
+    private final double minLon;
+    private final double maxLon;
+
+    private RouteTopology(int routeIndex, List<Direction> directions, List<Stop> stops,
+                          double minLat, double maxLat, double minLon, double maxLon) {
+        this.routeIndex = routeIndex;
+        this.directions = directions;
+        this.stops = stops;
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLon = minLon;
+        this.maxLon = maxLon;
+    }
+
+    /**
+     * Calcola la topologia dai trip già collegati alla linea
+     * @param stopLookup fermata per indice in GtfsIds.STOPS (null se assente)
+     * @param shapeLookup percorso per indice in GtfsIds.SHAPES
+     */
+    public static RouteTopology build(Route route, IntFunction<Stop> stopLookup, IntFunction<ShapePath> shapeLookup) {
+        // Per direzione: il trip con più fermate e il primo trip con uno shape
+        TreeMap<Integer, Trip> longest = new TreeMap<>();
+        TreeMap<Integer, Trip> withShape = new TreeMap<>();
+        for (Trip trip : route.getTrips()) {
+            int direction = trip.getDirectionId();
+            Trip best = longest.get(direction);
+            if (best == null || trip.getStopTimes().size() > best.getStopTimes().size()) {
+                longest.put(direction, trip);
+            }
+            if (trip.getShapeIndex() >= 0) {
+                withShape.putIfAbsent(direction, trip);
+            }
+        }
+
+        List<Direction> directions = new ArrayList<>(longest.size());
+        List<Stop> allStops = new ArrayList<>();
+        boolean[] added = new boolean[0];
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+
+        for (Trip trip : longest.values()) {
+            int direction = trip.getDirectionId();
+
+            List<Stop> stops = new ArrayList<>();
+            for (int stopIndex : trip.getStopSequence()) {
+                Stop stop = stopLookup.apply(stopIndex);
+                if (stop == null) continue;
+                stops.add(stop);
+                if (stopIndex >= added.length) {
+                    added = Arrays.copyOf(added, Math.max(stopIndex + 1, added.length * 2));
+                }
+                if (!added[stopIndex]) {
+                    added[stopIndex] = true;
+                    allStops.add(stop);
+                }
+            }
+
+            Trip shapeTrip = trip.getShapeIndex() >= 0 ? trip : withShape.get(direction);
+            int shapeIndex = shapeTrip != null ? shapeTrip.getShapeIndex() : -1;
+            ShapePath shape = shapeIndex >= 0 ? shapeLookup.apply(shapeIndex) : ShapePath.EMPTY;
+
+            if (shape.size() >= 2) {
+                for (int i = 0; i < shape.size(); i++) {
+                    minLat = Math.min(minLat, shape.getLat(i));
+                    maxLat = Math.max(maxLat, shape.getLat(i));
+                    minLon = Math.min(minLon, shape.getLon(i));
+                    maxLon = Math.max(maxLon, shape.getLon(i));
+                }
+            }
+            for (Stop stop : stops) {
+                minLat = Math.min(minLat, stop.getLat());
+                maxLat = Math.max(maxLat, stop.getLat());
+                minLon = Math.min(minLon, stop.getLon());
+                maxLon = Math.max(maxLon, stop.getLon());
+            }
+
+            directions.add(new Direction(direction, trip.getTripHeadsign(),
+                    Collections.unmodifiableList(stops), shape.size() > 0 ? shapeIndex : -1, shapeLookup));
+        }
+
+        return new RouteTopology(route.getIndex(), Collections.unmodifiableList(directions),
+                Collections.unmodifiableList(allStops), minLat, maxLat, minLon, maxLon);
+    }
+
+    public int getRouteIndex() {
+        return routeIndex;
+    }
+
+    /**
+     * @return le direzioni, ordinate per direction_id
+     */
+    public List<Direction> getDirections() {
+        return directions;
+    }
+
+    /**
+     * @return le fermate di tutte le direzioni senza ripetizioni: prima quelle della
+     *         prima direzione in ordine di percorrenza, poi le altre
+     */
+    public List<Stop> getStops() {
+        return stops;
+    }
+
+    /**
+     * @return lo shape della prima direzione che ne ha uno, o ShapePath.EMPTY
+     */
+    public ShapePath getShape() {
+        for (Direction d : directions) {
+            if (d.shapeIndex >= 0) {
+                return d.getShape();
+            }
+        }
+        return ShapePath.EMPTY;
+    }
+
+    /**
+     * @return true se c'è almeno un punto (shape o fermata) da cui ricavare il riquadro
+     */
+    public boolean hasBounds() {
+        return minLat <= maxLat;
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    public double getMinLon() {
+        return minLon;
+    }
+
+    public double getMaxLon() {
+        return maxLon;
+    }
+}
@@ -0,0 +1,178 @@
+package it.damose.model;
+
+import it.damose.map.TilesManager;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Percorso (shape) in forma compatta: coordinate in microgradi in array di int
+ * invece di un oggetto ShapePoint per punto.
+ * Per ogni livello di zoom della mappa viene precalcolata una versione semplificata
+ * con Douglas-Peucker, così ai livelli bassi si disegnano solo i punti visibili.
+ */
+public class ShapePath {
+
+    // Scarto massimo ammesso dalla semplificazione, in pixel sullo schermo
+    private static final double TOLERANCE_PX = 0.5;
+
+    /** Percorso senza punti (shape assente) */
+    public static final ShapePath EMPTY = new ShapePath("", new int[0], new int[0], new float[0], null);
+
+    private final String shapeId;
+    private final int[] latE6;
+    private final int[] lonE6;
+    private final float[] distTraveled;
+
+    // Versioni semplificate, indicizzate per zoom - MIN_ZOOM (solo nel percorso completo)
+    private final ShapePath[] levels;
+
+    private ShapePath(String shapeId, int[] latE6, int[] lonE6, float[] distTraveled, ShapePath[] levels) {
+        this.shapeId = shapeId;
+        this.latE6 = latE6;
+        this.lonE6 = lonE6;
+        this.distTraveled = distTraveled;
+        this.levels = levels;
+    }
+
+    /**
+     * Crea il percorso dai punti ordinati per sequence e ne precalcola le semplificazioni
+     */
+    public static ShapePath fromPoints(String shapeId, List<ShapePoint> points) {
+        int n = points.size();
+        int[] lat = new int[n];
+        int[] lon = new int[n];
+        float[] dist = new float[n];
+        for (int i = 0; i < n; i++) {
+            ShapePoint p = points.get(i);
+            lat[i] = (int) Math.round(p.getLat() * 1e6);
+            lon[i] = (int) Math.round(p.getLon() * 1e6);
+            dist[i] = (float) p.getDistTraveled();
+        }
+
+        ShapePath[] levels = new ShapePath[TilesManager.MAX_ZOOM - TilesManager.MIN_ZOOM + 1];
+        ShapePath full = new ShapePath(shapeId, lat, lon, dist, levels);
+        for (int zoom = TilesManager.MIN_ZOOM; zoom <= TilesManager.MAX_ZOOM; zoom++) {
+            levels[zoom - TilesManager.MIN_ZOOM] = full.simplify(zoom);
+        }
+        return full;
+    }
+
+    public String getShapeId() {
+        return shapeId;
+    }
+
+    public int size() {
+        return latE6.length;
+    }
+
+    public double getLat(int i) {
+        return latE6[i] / 1e6;
+    }
+
+    public double getLon(int i) {
+        return lonE6[i] / 1e6;
+    }
+
+    public float getDistTraveled(int i) {
+        return distTraveled[i];
+    }
+
+    /**
+     * @return la versione semplificata adatta allo zoom (limitato all'intervallo della mappa)
+     */
+    public ShapePath forZoom(int zoom) {
+        if (levels == null) {
+            return this;
+        }
+        int z = Math.max(TilesManager.MIN_ZOOM, Math.min(TilesManager.MAX_ZOOM, zoom));
+        return levels[z - TilesManager.MIN_ZOOM];
+    }
+
+    /**
+     * Douglas-Peucker con tolleranza di TOLERANCE_PX pixel allo zoom indicato.
+     * Le distanze si calcolano con la longitudine scalata per cos(lat), così un grado
+     * vale uguale nelle due direzioni.
+     */
+    private ShapePath simplify(int zoom) {
+        int n = latE6.length;
+        if (n <= 2) {
+            return new ShapePath(shapeId, latE6, lonE6, distTraveled, null);
+        }
+
+        double lonScale = Math.cos(Math.toRadians(latE6[0] / 1e6));
+        // Gradi di latitudine per pixel in proiezione Mercator (x 1e6 per i microgradi)
+        double tolerance = TOLERANCE_PX * 360.0 * lonScale / (256.0 * (1 << zoom)) * 1e6;
+        double tolerance2 = tolerance * tolerance;
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+
+        // Pila di intervalli da esaminare (evita la ricorsione sui percorsi lunghi)
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            double ax = lonE6[first] * lonScale;
+            double ay = latE6[first];
+            double dx = lonE6[last] * lonScale - ax;
+            double dy = latE6[last] - ay;
+            double len2 = dx * dx + dy * dy;
+
+            double maxDist2 = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = lonE6[i] * lonScale - ax;
+                double py = latE6[i] - ay;
+                double d2;
+                if (len2 == 0) {
+                    d2 = px * px + py * py;
+                } else {
+                    double cross = px * dy - py * dx;
+                    d2 = cross * cross / len2;
+                }
+                if (d2 > maxDist2) {
+                    maxDist2 = d2;
+                    farthest = i;
+                }
+            }
+
+            if (farthest >= 0 && maxDist2 > tolerance2) {
+                keep[farthest] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int count = 0;
+        for (boolean k : keep) {
+            if (k) count++;
+        }
+        if (count == n) {
+            return new ShapePath(shapeId, latE6, lonE6, distTraveled, null);
+        }
+
+        int[] lat = new int[count];
+        int[] lon = new int[count];
+        float[] dist = new float[count];
+        for (int i = 0, j = 0; i < n; i++) {
+            if (keep[i]) {
+                lat[j] = latE6[i];
+                lon[j] = lonE6[i];
+                dist[j] = distTraveled[i];
+                j++;
+            }
+        }
+        return new ShapePath(shapeId, lat, lon, dist, null);
+    }
+}
@@ -1,38 +1,62 @@
 package it.damose.model;
 
+import it.damose.data.GtfsIds;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Stop {
-    private final String id;
+    private final int index; // indice in GtfsIds.STOPS
     private final String name;
     private final double lat;
     private final double lon;
-    private final List<String> routeIds = new ArrayList<>();
+
+    // Route che passano per la fermata, come indici in GtfsIds.ROUTES
+    private int[] routeIndexes = new int[0];
 
     public Stop(String id, String name, double lat, double lon) {
-        this.id = id;
+        this.index = GtfsIds.STOPS.intern(id);
         this.name = name;
         this.lat = lat;
         this.lon = lon;
     }
 
-    public String getId() { return id; }
+    public String getId() { return GtfsIds.STOPS.get(index); }
+    public int getIndex() { return index; }
     public String getName() { return name; }
     public double getLat() { return lat; }
     public double getLon() { return lon; }
 
     public void addRoute(String routeId) {
-        if (!routeIds.contains(routeId))
-            routeIds.add(routeId);
+        addRoute(GtfsIds.ROUTES.intern(routeId));
+    }
+
+    public void addRoute(int routeIndex) {
+        for (int r : routeIndexes) {
+            if (r == routeIndex) return;
+        }
+        routeIndexes = Arrays.copyOf(routeIndexes, routeIndexes.length + 1);
+        routeIndexes[routeIndexes.length - 1] = routeIndex;
+    }
+
+    /**
+     * @return gli indici in GtfsIds.ROUTES delle route della fermata (da non modificare)
+     */
+    public int[] getRouteIndexes() {
+        return routeIndexes;
     }
 
     public List<String> getRouteIds() {
-        return routeIds;
+        List<String> ids = new ArrayList<>(routeIndexes.length);
+        for (int r : routeIndexes) {
+            ids.add(GtfsIds.ROUTES.get(r));
+        }
+        return ids;
     }
 
     @Override
     public String toString() {
-        return name + " (" + id + ")";
+        return name + " (" + getId() + ")";
     }
-}
\ No newline at end of file
+}
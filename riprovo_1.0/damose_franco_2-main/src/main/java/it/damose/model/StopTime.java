@@ -1,18 +1,38 @@
 package it.damose.model;
 
+import it.damose.data.GtfsIds;
+import it.damose.util.TimeUtil;
+
 public class StopTime {
-    private final String tripId;
-    private final String arrivalTime;
-    private final String departureTime;
-    private final String stopId;
+    private final int tripIndex; // indice in GtfsIds.TRIPS
+    private final int arrivalSeconds;
+    private final int departureSeconds;
+    private final int stopIndex; // indice in GtfsIds.STOPS
     private final int stopSequence;
 
     public StopTime(String tripId, String arrivalTime, String departureTime,
                     String stopId, int stopSequence) {
-        this.tripId = tripId;
-        this.arrivalTime = arrivalTime;
-        this.departureTime = departureTime;
-        this.stopId = stopId;
+        this(tripId, TimeUtil.parse(arrivalTime), TimeUtil.parse(departureTime), stopId, stopSequence);
+    }
+
+    /**
+     * Crea uno StopTime con orari già espressi in secondi dall'inizio del giorno di servizio
+     */
+    public StopTime(String tripId, int arrivalSeconds, int departureSeconds,
+                    String stopId, int stopSequence) {
+        this(GtfsIds.TRIPS.intern(tripId), arrivalSeconds, departureSeconds,
+                GtfsIds.STOPS.intern(stopId), stopSequence);
+    }
+
+    /**
+     * Crea uno StopTime a partire dagli indici di trip e fermata nei dizionari globali
+     */
+    public StopTime(int tripIndex, int arrivalSeconds, int departureSeconds,
+                    int stopIndex, int stopSequence) {
+        this.tripIndex = tripIndex;
+        this.arrivalSeconds = arrivalSeconds;
+        this.departureSeconds = departureSeconds;
+        this.stopIndex = stopIndex;
         this.stopSequence = stopSequence;
     }
 
@@ -39,19 +59,35 @@ public class StopTime {
     }
 
     public String getTripId() {
-        return tripId;
+        return GtfsIds.TRIPS.get(tripIndex);
+    }
+
+    public int getTripIndex() {
+        return tripIndex;
     }
 
     public String getArrivalTime() {
-        return arrivalTime;
+        return TimeUtil.format(arrivalSeconds);
     }
 
     public String getDepartureTime() {
-        return departureTime;
+        return TimeUtil.format(departureSeconds);
+    }
+
+    public int getArrivalSeconds() {
+        return arrivalSeconds;
+    }
+
+    public int getDepartureSeconds() {
+        return departureSeconds;
     }
 
     public String getStopId() {
-        return stopId;
+        return GtfsIds.STOPS.get(stopIndex);
+    }
+
+    public int getStopIndex() {
+        return stopIndex;
     }
 
     public int getStopSequence() {
@@ -61,10 +97,10 @@ public class StopTime {
     @Override
     public String toString() {
         return "StopTime{" +
-                "tripId='" + tripId + '\'' +
-                ", stopId='" + stopId + '\'' +
-                ", arrival='" + arrivalTime + '\'' +
+                "tripId='" + getTripId() + '\'' +
+                ", stopId='" + getStopId() + '\'' +
+                ", arrival='" + getArrivalTime() + '\'' +
                 ", sequence=" + stopSequence +
                 '}';
     }
-}
\ No newline at end of file
+}
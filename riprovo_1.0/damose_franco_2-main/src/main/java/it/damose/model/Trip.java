@@ -1,35 +1,46 @@
 package it.damose.model;
 
+import it.damose.data.GtfsIds;
+import it.damose.data.StopTimeTable;
+import it.damose.data.TimetableRef;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class Trip {
-    private final String id;
-    private final String routeId;
-    private final String serviceId;
+    // Id GTFS come indici nei dizionari globali (GtfsIds)
+    private final int index;
+    private final int routeIndex;
+    private final int serviceIndex;
     private final String tripHeadsign;
     private final String tripShortName;
     private final int directionId;
     private final String blockId;
-    private final String shapeId;
+    private final int shapeIndex;
     private final int wheelchairAccessible;
     private final int exceptional;
 
-    private final List<String> stopIds = new ArrayList<>();
-    private final List<StopTime> stopTimes = new ArrayList<>();
+    // Stop_times del trip: righe della tabella colonnare (nessun oggetto per riga).
+    // La tabella si legge dal riferimento condiviso, che può essere sostituita da
+    // un altro thread: ogni metodo la legge una volta sola.
+    private TimetableRef timetable;
+    private int tableIndex = -1;
 
     // Costruttore completo
     public Trip(String routeId, String serviceId, String id, String tripHeadsign,
                 String tripShortName, int directionId, String blockId,
                 String shapeId, int wheelchairAccessible, int exceptional) {
-        this.id = id;
-        this.routeId = routeId;
-        this.serviceId = serviceId;
+        this.index = GtfsIds.TRIPS.intern(id);
+        this.routeIndex = GtfsIds.ROUTES.intern(routeId);
+        this.serviceIndex = GtfsIds.SERVICES.intern(serviceId);
         this.tripHeadsign = tripHeadsign;
         this.tripShortName = tripShortName;
         this.directionId = directionId;
         this.blockId = blockId;
-        this.shapeId = shapeId; // IMPORTANTE: assicurati che non sia null
+        // shape_id vuoto = trip senza shape (-1), non un id "" nel dizionario
+        this.shapeIndex = shapeId == null || shapeId.isEmpty() ? -1 : GtfsIds.SHAPES.intern(shapeId);
         this.wheelchairAccessible = wheelchairAccessible;
         this.exceptional = exceptional;
     }
@@ -111,15 +122,27 @@ public class Trip {
 
     // Getters
     public String getId() {
-        return id;
+        return GtfsIds.TRIPS.get(index);
+    }
+
+    public int getIndex() {
+        return index;
     }
 
     public String getRouteId() {
-        return routeId;
+        return GtfsIds.ROUTES.get(routeIndex);
+    }
+
+    public int getRouteIndex() {
+        return routeIndex;
     }
 
     public String getServiceId() {
-        return serviceId;
+        return GtfsIds.SERVICES.get(serviceIndex);
+    }
+
+    public int getServiceIndex() {
+        return serviceIndex;
     }
 
     public String getTripHeadsign() {
@@ -139,7 +162,14 @@ public class Trip {
     }
 
     public String getShapeId() {
-        return shapeId;
+        return GtfsIds.SHAPES.get(shapeIndex);
+    }
+
+    /**
+     * @return l'indice in GtfsIds.SHAPES, o -1 se il trip non ha shape
+     */
+    public int getShapeIndex() {
+        return shapeIndex;
     }
 
     public int getWheelchairAccessible() {
@@ -150,27 +180,95 @@ public class Trip {
         return exceptional;
     }
 
-    public void addStopTime(StopTime st) {
-        stopTimes.add(st);
-        if (!stopIds.contains(st.getStopId())) {
-            stopIds.add(st.getStopId());
-        }
+    /**
+     * Collega il trip alle sue righe nella tabella degli stop_times. Da chiamare in
+     * fase di caricamento, prima di condividere il trip con altri thread.
+     * @param index posizione del trip nelle tabelle del riferimento
+     */
+    public void attachStopTimes(TimetableRef timetable, int index) {
+        this.timetable = timetable;
+        this.tableIndex = index;
     }
 
+    /**
+     * @return la tabella in uso, o null se il trip non è collegato
+     */
+    private StopTimeTable table() {
+        return timetable != null ? timetable.get() : null;
+    }
+
+    /**
+     * @return vista in sola lettura sugli stop_times, ordinati per stop_sequence
+     */
     public List<StopTime> getStopTimes() {
-        return stopTimes;
+        StopTimeTable table = table();
+        if (table == null) {
+            return Collections.emptyList();
+        }
+        return table.stopTimesOf(tableIndex);
     }
 
+    /**
+     * @return gli stop_id distinti del trip, nell'ordine di percorrenza
+     */
     public List<String> getStopIds() {
-        return stopIds;
+        int[] indexes = getStopIndexes();
+        List<String> ids = new ArrayList<>(indexes.length);
+        for (int stop : indexes) {
+            ids.add(GtfsIds.STOPS.get(stop));
+        }
+        return ids;
+    }
+
+    /**
+     * @return gli indici in GtfsIds.STOPS delle fermate nell'ordine delle righe,
+     *         ripetizioni comprese (un percorso circolare ripassa dalla stessa fermata)
+     */
+    public int[] getStopSequence() {
+        StopTimeTable table = table();
+        if (table == null) {
+            return new int[0];
+        }
+        int from = table.start(tableIndex);
+        int to = table.end(tableIndex);
+        int[] indexes = new int[to - from];
+        for (int row = from; row < to; row++) {
+            indexes[row - from] = table.stopIndex(tableIndex, row);
+        }
+        return indexes;
+    }
+
+    /**
+     * @return gli indici in GtfsIds.STOPS delle fermate distinte, nell'ordine di percorrenza
+     */
+    public int[] getStopIndexes() {
+        StopTimeTable table = table();
+        if (table == null) {
+            return new int[0];
+        }
+        int from = table.start(tableIndex);
+        int to = table.end(tableIndex);
+        int[] indexes = new int[to - from];
+        int count = 0;
+        for (int row = from; row < to; row++) {
+            int stop = table.stopIndex(tableIndex, row);
+            boolean seen = false;
+            for (int i = 0; i < count && !seen; i++) {
+                seen = indexes[i] == stop;
+            }
+            if (!seen) {
+                indexes[count++] = stop;
+            }
+        }
+        return count == indexes.length ? indexes : Arrays.copyOf(indexes, count);
     }
 
     @Override
     public String toString() {
         return "Trip{" +
-                "id='" + id + '\'' +
-                ", routeId='" + routeId + '\'' +
-                ", shapeId='" + shapeId + '\'' +
+                "id='" + getId() + '\'' +
+                ", routeId='" + getRouteId() + '\'' +
+                ", shapeId='" + getShapeId() + '\'' +
                 ", headsign='" + tripHeadsign + '\'' +
                 '}';
     }
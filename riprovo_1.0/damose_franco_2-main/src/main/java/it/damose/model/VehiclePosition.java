@@ -1,16 +1,30 @@
 package it.damose.model;
 
+import it.damose.data.GtfsIds;
+
 public class VehiclePosition {
 
     private final String vehicleId;
-    private final String routeId;
+    private final int routeIndex; // indice in GtfsIds.ROUTES, -1 se la linea non è nel feed statico
+    private final String unknownRouteId; // route_id del feed realtime quando routeIndex è -1
     private final double latitude;
     private final double longitude;
     private final float bearing;
 
     public VehiclePosition(String vehicleId, String routeId, double latitude, double longitude, float bearing) {
+        // Solo ricerca: gli id sconosciuti del feed realtime non entrano nel dizionario globale
+        this(vehicleId, GtfsIds.ROUTES.indexOf(routeId), routeId, latitude, longitude, bearing);
+    }
+
+    public VehiclePosition(String vehicleId, int routeIndex, double latitude, double longitude, float bearing) {
+        this(vehicleId, routeIndex, null, latitude, longitude, bearing);
+    }
+
+    private VehiclePosition(String vehicleId, int routeIndex, String routeId,
+                            double latitude, double longitude, float bearing) {
         this.vehicleId = vehicleId;
-        this.routeId = routeId;
+        this.routeIndex = routeIndex;
+        this.unknownRouteId = routeIndex < 0 ? routeId : null;
         this.latitude = latitude;
         this.longitude = longitude;
         this.bearing = bearing;
@@ -21,7 +35,11 @@ public class VehiclePosition {
     }
 
     public String getRouteId() {
-        return routeId;
+        return routeIndex >= 0 ? GtfsIds.ROUTES.get(routeIndex) : unknownRouteId;
+    }
+
+    public int getRouteIndex() {
+        return routeIndex;
     }
 
     public double getLatitude() {
@@ -34,7 +52,7 @@ public class VehiclePosition {
 
     @Override
     public String toString() {
-        return "Vehicle " + vehicleId + " (Route " + routeId + ") @ " + latitude + "," + longitude;
+        return "Vehicle " + vehicleId + " (Route " + getRouteId() + ") @ " + latitude + "," + longitude;
     }
     public float getBearing() {
         return bearing;
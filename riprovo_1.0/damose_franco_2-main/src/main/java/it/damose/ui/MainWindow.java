@@ -12,9 +12,13 @@ import javax.swing.event.DocumentListener; // Per la ricerca live
 import java.awt.*;
 import java.awt.event.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Finestra principale (JFrame) dell'applicazione Rome Transit Tracker.
@@ -31,7 +35,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
 
     // --- Componenti UI (Frontend) ---
     // Componenti principali del layout
-    private final DefaultListModel<Object> listModel = new DefaultListModel<>();
+    private final ResultListModel listModel = new ResultListModel();
     private final JList<Object> resultsList = new JList<>(listModel);
     private final JTextArea detailArea = new JTextArea();
     private final JTextField searchField = new JTextField();
@@ -50,6 +54,17 @@ public class MainWindow extends JFrame implements ConnectionListener {
     private Route currentlySelectedRoute = null; // La linea selezionata, per filtrare la mappa
     private Timer searchDebounceTimer; // Timer per la ricerca live
 
+    // La ricerca gira fuori dall'EDT; ogni nuova ricerca (o cambio di vista)
+    // incrementa la generazione e i risultati di quelle vecchie vengono scartati
+    private static final int SEARCH_BATCH = 200;
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "damose-search");
+        t.setDaemon(true);
+        return t;
+    });
+    private Future<?> pendingSearch;
+    private int searchGeneration;
+
     // --- Utilità ---
     private final SimpleDateFormat timeFormatter = new SimpleDateFormat("HH:mm");
 
@@ -118,6 +133,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
                 if (mappa != null) {
                     mappa.cleanup();
                 }
+                searchExecutor.shutdownNow();
             }
         });
     }
@@ -194,6 +210,10 @@ public class MainWindow extends JFrame implements ConnectionListener {
 
         // 1. Pannello Lista (in alto a sinistra)
         resultsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // Renderer con le etichette in cache e altezza/larghezza fisse prese da un
+        // valore campione: la JList non misura più ogni riga del catalogo
+        resultsList.setCellRenderer(new ResultCellRenderer());
+        resultsList.setPrototypeCellValue("PIAZZA DEI CINQUECENTO/STAZIONE TERMINI (00000)");
         JScrollPane listPane = new JScrollPane(resultsList);
 
         // 2. Pannello Dettagli (in basso a sinistra)
@@ -311,19 +331,16 @@ public class MainWindow extends JFrame implements ConnectionListener {
             mappa.setSelectedStop(null);
         }
 
-        listModel.clear();
-        detailArea.setText("Caricamento di tutte le fermate...");
-
-        SwingUtilities.invokeLater(() -> {
-            try {
-                for (Stop s : controller.getStops()) {
-                    listModel.addElement(s);
-                }
-                detailArea.setText("Dati caricati. Seleziona un elemento.\n\nSuggerimento: Doppio click su una fermata o linea per centrare la mappa.");
-            } catch (Exception e) {
-                detailArea.setText("Errore nel caricamento dati:\n" + e.getMessage());
-            }
-        });
+        cancelSearch();
+        try {
+            // Il catalogo del controller non cambia dopo il caricamento: la lista lo usa
+            // direttamente, senza copiarlo
+            listModel.setItems(controller.getStops());
+            detailArea.setText("Dati caricati. Seleziona un elemento.\n\nSuggerimento: Doppio click su una fermata o linea per centrare la mappa.");
+        } catch (Exception e) {
+            listModel.clear();
+            detailArea.setText("Errore nel caricamento dati:\n" + e.getMessage());
+        }
     }
 
     /**
@@ -337,7 +354,18 @@ public class MainWindow extends JFrame implements ConnectionListener {
     }
 
     /**
-     * Esegue la ricerca e aggiorna la lista con i risultati.
+     * Annulla la ricerca in corso: i suoi risultati non arriveranno più nella lista
+     */
+    private void cancelSearch() {
+        searchGeneration++;
+        if (pendingSearch != null) {
+            pendingSearch.cancel(true);
+            pendingSearch = null;
+        }
+    }
+
+    /**
+     * Esegue la ricerca in background e aggiorna la lista con i risultati, a blocchi.
      */
     private void search() {
         btnToggleFavorite.setVisible(false);
@@ -349,28 +377,51 @@ public class MainWindow extends JFrame implements ConnectionListener {
         }
 
         String q = searchField.getText().trim();
-        listModel.clear();
-
         if (q.isEmpty()) {
             loadAllData(); // Se la ricerca è vuota, ricarica tutto
             return;
         }
 
+        cancelSearch();
+        listModel.clear();
+
         // Non mostriamo "Ricerca in corso..." per la ricerca live
         // detailArea.setText("Ricerca in corso...");
 
-        SwingUtilities.invokeLater(() -> {
+        int generation = searchGeneration;
+        pendingSearch = searchExecutor.submit(() -> {
             List<Route> routeResults = controller.searchRoutes(q);
-            for (Route r : routeResults) listModel.addElement(r);
-
+            if (Thread.currentThread().isInterrupted()) return;
             List<Stop> stopResults = controller.searchStops(q);
-            for (Stop s : stopResults) listModel.addElement(s);
+            if (Thread.currentThread().isInterrupted()) return;
 
-            if (routeResults.isEmpty() && stopResults.isEmpty()) {
-                detailArea.setText("Nessuna fermata o linea trovata per \"" + q + "\"");
-            } else {
-                detailArea.setText("Trovati " + listModel.getSize() + " risultati per \"" + q + "\".\n\nSuggerimento: Doppio click per centrare la mappa.");
-                resultsList.setSelectedIndex(0);
+            // Prima le linee, poi le fermate a blocchi: ogni blocco è un solo evento
+            deliverSearchBatch(generation, routeResults);
+            for (int from = 0; from < stopResults.size(); from += SEARCH_BATCH) {
+                if (Thread.currentThread().isInterrupted()) return;
+                deliverSearchBatch(generation, stopResults.subList(from, Math.min(from + SEARCH_BATCH, stopResults.size())));
+            }
+
+            SwingUtilities.invokeLater(() -> {
+                if (generation != searchGeneration) return;
+                if (listModel.isEmpty()) {
+                    detailArea.setText("Nessuna fermata o linea trovata per \"" + q + "\"");
+                } else {
+                    detailArea.setText("Trovati " + listModel.getSize() + " risultati per \"" + q + "\".\n\nSuggerimento: Doppio click per centrare la mappa.");
+                    resultsList.setSelectedIndex(0);
+                }
+            });
+        });
+    }
+
+    /**
+     * Aggiunge un blocco di risultati sull'EDT, se la ricerca è ancora quella corrente
+     */
+    private void deliverSearchBatch(int generation, List<?> batch) {
+        if (batch.isEmpty()) return;
+        SwingUtilities.invokeLater(() -> {
+            if (generation == searchGeneration) {
+                listModel.addAll(batch);
             }
         });
     }
@@ -436,7 +487,8 @@ public class MainWindow extends JFrame implements ConnectionListener {
                 sb.append("PROSSIMI ARRIVI PROGRAMMATI (OFFLINE)\n");
                 sb.append("───────────────────────────────────────\n");
                 List<StopTime> nextArrivals = controller.getNextArrivals(s, 15);
-                if (nextArrivals.isEmpty()) sb.append("Nessun orario disponibile\n");
+                if (!controller.isScheduleReady()) sb.append("Orari in caricamento...\n");
+                else if (nextArrivals.isEmpty()) sb.append("Nessun orario disponibile\n");
                 else for (StopTime st : nextArrivals) sb.append(controller.getArrivalInfo(st)).append("\n");
             }
 
@@ -461,11 +513,18 @@ public class MainWindow extends JFrame implements ConnectionListener {
             sb.append("ID: ").append(r.getId()).append("\n\n");
             sb.append("FERMATE (in ordine)\n");
             sb.append("───────────────────────────────────────\n");
-            List<Stop> stops = controller.getStopsForRoute(r);
-            if (stops != null && !stops.isEmpty()) {
-                int num = 1;
-                for (Stop stop : stops) {
-                    sb.append(num++).append(". ").append(stop.getName()).append(" (").append(stop.getId()).append(")\n   Lat: ").append(stop.getLat()).append(", Lon: ").append(stop.getLon()).append("\n");
+            List<RouteTopology.Direction> directions = controller.getTopology(r).getDirections();
+            if (!directions.isEmpty()) {
+                for (RouteTopology.Direction direction : directions) {
+                    if (directions.size() > 1) {
+                        String headsign = direction.getHeadsign();
+                        sb.append("\nDirezione ").append(direction.getDirectionId())
+                                .append(headsign != null && !headsign.isEmpty() ? " → " + headsign : "").append("\n");
+                    }
+                    int num = 1;
+                    for (Stop stop : direction.getStops()) {
+                        sb.append(num++).append(". ").append(stop.getName()).append(" (").append(stop.getId()).append(")\n   Lat: ").append(stop.getLat()).append(", Lon: ").append(stop.getLon()).append("\n");
+                    }
                 }
             } else {
                 sb.append("(Nessuna fermata associata a questa linea)\n");
@@ -516,8 +575,8 @@ public class MainWindow extends JFrame implements ConnectionListener {
                                 System.out.println("Click su linea: " + clickedRoute.getName());
 
                                 // Carica la route nella lista e mostra i dettagli
-                                listModel.clear();
-                                listModel.addElement(clickedRoute);
+                                cancelSearch();
+                                listModel.setItems(List.of(clickedRoute));
                                 resultsList.setSelectedIndex(0);
 
                                 // Mostra sulla mappa
@@ -573,12 +632,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
             mappa.setZoom(16); // Zoom alto
         } else if (obj instanceof Route route) {
             // (Il filtro è già stato impostato da showDetails)
-            List<Stop> stops = controller.getStopsForRoute(route);
-            if (stops != null && !stops.isEmpty()) {
-                // Centra sulla prima fermata della linea
-                mappa.centerOn(stops.get(0).getLat(), stops.get(0).getLon());
-                mappa.setZoom(14); // Zoom medio
-            }
+            mappa.centerOnRoute(route); // Riquadro dell'intera linea
         }
     }
 
@@ -588,8 +642,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
      * Mostra solo gli elementi preferiti nella lista.
      */
     private void showFavorites() {
-        listModel.clear();
-        detailArea.setText("Caricamento preferiti...");
+        cancelSearch();
         btnToggleFavorite.setVisible(false);
         currentSelectedObject = null;
         if (mappa != null) {
@@ -597,25 +650,25 @@ public class MainWindow extends JFrame implements ConnectionListener {
             mappa.setSelectedStop(null);
         }
 
-        SwingUtilities.invokeLater(() -> {
-            // Usa la ricerca per ID Esatto
-            Set<String> stopIds = favoritesManager.getFavoriteStopIds();
-            for (String id : stopIds) {
-                Stop result = controller.getStopById(id);
-                if (result != null) listModel.addElement(result);
-            }
-            Set<String> routeIds = favoritesManager.getFavoriteRouteIds();
-            for (String id : routeIds) {
-                Route result = controller.getRouteById(id);
-                if (result != null) listModel.addElement(result);
-            }
+        // Usa la ricerca per ID Esatto
+        List<Object> favorites = new ArrayList<>();
+        Set<String> stopIds = favoritesManager.getFavoriteStopIds();
+        for (String id : stopIds) {
+            Stop result = controller.getStopById(id);
+            if (result != null) favorites.add(result);
+        }
+        Set<String> routeIds = favoritesManager.getFavoriteRouteIds();
+        for (String id : routeIds) {
+            Route result = controller.getRouteById(id);
+            if (result != null) favorites.add(result);
+        }
+        listModel.setItems(favorites);
 
-            if (listModel.isEmpty()) detailArea.setText("Non hai ancora aggiunto preferiti.");
-            else {
-                detailArea.setText("Trovati " + listModel.getSize() + " preferiti.");
-                resultsList.setSelectedIndex(0);
-            }
-        });
+        if (listModel.isEmpty()) detailArea.setText("Non hai ancora aggiunto preferiti.");
+        else {
+            detailArea.setText("Trovati " + listModel.getSize() + " preferiti.");
+            resultsList.setSelectedIndex(0);
+        }
     }
 
     /**
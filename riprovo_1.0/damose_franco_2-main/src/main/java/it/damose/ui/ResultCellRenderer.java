@@ -0,0 +1,50 @@
+package it.damose.ui;
+
+import it.damose.model.Route;
+import it.damose.model.Stop;
+
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import java.awt.Component;
+import java.util.Arrays;
+
+/**
+ * Renderer della lista dei risultati. Il testo di fermate e linee viene formattato
+ * una volta sola e poi riusato, in array indicizzati come i dizionari globali:
+ * lo scorrimento non ricrea stringhe ad ogni ridisegno.
+ */
+public class ResultCellRenderer extends DefaultListCellRenderer {
+
+    private String[] stopLabels = new String[0];
+    private String[] routeLabels = new String[0];
+
+    @Override
+    public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                  boolean isSelected, boolean cellHasFocus) {
+        return super.getListCellRendererComponent(list, label(value), index, isSelected, cellHasFocus);
+    }
+
+    private Object label(Object value) {
+        if (value instanceof Stop stop) {
+            int i = stop.getIndex();
+            if (i >= stopLabels.length) {
+                stopLabels = Arrays.copyOf(stopLabels, Math.max(i + 1, stopLabels.length * 2));
+            }
+            if (stopLabels[i] == null) {
+                stopLabels[i] = stop.toString();
+            }
+            return stopLabels[i];
+        }
+        if (value instanceof Route route) {
+            int i = route.getIndex();
+            if (i >= routeLabels.length) {
+                routeLabels = Arrays.copyOf(routeLabels, Math.max(i + 1, routeLabels.length * 2));
+            }
+            if (routeLabels[i] == null) {
+                routeLabels[i] = route.toString();
+            }
+            return routeLabels[i];
+        }
+        return value;
+    }
+}
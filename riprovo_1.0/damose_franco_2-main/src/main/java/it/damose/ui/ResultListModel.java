@@ -0,0 +1,84 @@
+package it.damose.ui;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Modello della lista dei risultati con aggiornamenti in blocco: cambiare vista o
+ * aggiungere molti elementi genera al più due eventi, invece di uno per riga come
+ * DefaultListModel.addElement. setItems non copia la lista ricevuta (ad esempio il
+ * catalogo delle fermate del controller): la usa come vista finché non si aggiungono
+ * altri elementi. Da usare solo sull'EDT.
+ */
+public class ResultListModel extends AbstractListModel<Object> {
+
+    private List<?> items = List.of();
+    private boolean owned; // true se items è una copia nostra, modificabile
+
+    @Override
+    public int getSize() {
+        return items.size();
+    }
+
+    @Override
+    public Object getElementAt(int index) {
+        return items.get(index);
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * Sostituisce il contenuto con la lista data, senza copiarla.
+     * La lista non deve cambiare finché il modello la usa.
+     */
+    public void setItems(List<?> newItems) {
+        int oldSize = items.size();
+        items = newItems;
+        owned = false;
+
+        // Un evento per la parte comune e uno per la coda aggiunta o tolta
+        int common = Math.min(oldSize, newItems.size());
+        if (common > 0) {
+            fireContentsChanged(this, 0, common - 1);
+        }
+        if (oldSize > common) {
+            fireIntervalRemoved(this, common, oldSize - 1);
+        } else if (newItems.size() > common) {
+            fireIntervalAdded(this, common, newItems.size() - 1);
+        }
+    }
+
+    public void clear() {
+        setItems(List.of());
+    }
+
+    public void addElement(Object item) {
+        addAll(List.of(item));
+    }
+
+    /**
+     * Aggiunge gli elementi in coda con un solo evento
+     */
+    public void addAll(Collection<?> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int first = items.size();
+        List<Object> own = owned();
+        own.addAll(batch);
+        fireIntervalAdded(this, first, own.size() - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> owned() {
+        if (!owned) {
+            items = new ArrayList<>(items);
+            owned = true;
+        }
+        return (List<Object>) items;
+    }
+}
@@ -0,0 +1,88 @@
+package it.damose.util;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizzazione dei testi per la ricerca: la stessa forma "piegata" viene calcolata
+ * una volta per i nomi indicizzati e ad ogni ricerca per la query.
+ * "P.ZA DELL'UNITÀ" e "piazza dell unita" danno la stessa chiave.
+ */
+public class SearchText {
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    // Separatori: tutto quello che non è lettera, cifra o punto (il punto serve a
+    // riconoscere le abbreviazioni e viene tolto dopo)
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}.]+");
+    private static final Pattern DOTS = Pattern.compile("\\.+");
+
+    // Abbreviazioni dei nomi delle fermate, senza punti. Si espandono solo se il token
+    // conteneva un punto, così "civ" mentre si scrive "civitavecchia" resta com'è
+    private static final Map<String, String> ABBREVIATIONS = new HashMap<>();
+
+    static {
+        ABBREVIATIONS.put("pza", "piazza");
+        ABBREVIATIONS.put("pzza", "piazza");
+        ABBREVIATIONS.put("ple", "piazzale");
+        ABBREVIATIONS.put("vle", "viale");
+        ABBREVIATIONS.put("vlo", "vicolo");
+        ABBREVIATIONS.put("lgo", "largo");
+        ABBREVIATIONS.put("cso", "corso");
+        ABBREVIATIONS.put("cne", "circonvallazione");
+        ABBREVIATIONS.put("pta", "porta");
+        ABBREVIATIONS.put("staz", "stazione");
+        ABBREVIATIONS.put("stazne", "stazione");
+        ABBREVIATIONS.put("civ", "civico");
+        ABBREVIATIONS.put("osp", "ospedale");
+        ABBREVIATIONS.put("min", "ministero");
+        ABBREVIATIONS.put("uff", "ufficio");
+        ABBREVIATIONS.put("fedne", "federazione");
+        ABBREVIATIONS.put("flli", "fratelli");
+        ABBREVIATIONS.put("mllo", "maresciallo");
+    }
+
+    /**
+     * Forma piegata del testo: minuscolo, senza accenti, abbreviazioni espanse e
+     * punteggiatura sostituita da un singolo spazio tra le parole
+     * @return la chiave, o "" se il testo è null o non contiene parole
+     */
+    public static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String plain = Normalizer.normalize(text, Normalizer.Form.NFD);
+        plain = DIACRITICS.matcher(plain).replaceAll("").toLowerCase(Locale.ROOT);
+
+        StringBuilder key = new StringBuilder(plain.length() + 8);
+        for (String token : SEPARATORS.split(plain)) {
+            if (token.indexOf('.') < 0) {
+                append(key, token);
+                continue;
+            }
+            String expanded = ABBREVIATIONS.get(DOTS.matcher(token).replaceAll(""));
+            if (expanded != null) {
+                append(key, expanded);
+            } else {
+                // "S.AGNESE" -> "s agnese"
+                for (String part : DOTS.split(token)) {
+                    append(key, part);
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    private static void append(StringBuilder key, String word) {
+        if (word.isEmpty()) {
+            return;
+        }
+        if (key.length() > 0) {
+            key.append(' ');
+        }
+        key.append(word);
+    }
+}
@@ -0,0 +1,56 @@
+package it.damose.util;
+
+/**
+ * Classe di utilità per gli orari GTFS ("HH:MM:SS", con ore che possono superare 23).
+ */
+public class TimeUtil {
+
+    public static final int SECONDS_PER_DAY = 24 * 3600;
+
+    // Cache delle stringhe formattate, indicizzata per secondi (fino a 48 ore di servizio)
+    private static final String[] FORMATTED = new String[48 * 3600];
+
+    /**
+     * Converte un orario "H:MM:SS" in secondi dall'inizio del giorno di servizio
+     * @return i secondi, o -1 se l'orario non è valido
+     */
+    public static int parse(String time) {
+        if (time == null) {
+            return -1;
+        }
+        String[] parts = time.trim().split(":");
+        if (parts.length != 3) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(parts[0]) * 3600
+                    + Integer.parseInt(parts[1]) * 60
+                    + Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Converte i secondi in "HH:MM:SS". Le stringhe sono condivise tra le chiamate.
+     * @return l'orario formattato, o "" se seconds è negativo
+     */
+    public static String format(int seconds) {
+        if (seconds < 0) {
+            return "";
+        }
+        if (seconds >= FORMATTED.length) {
+            return doFormat(seconds);
+        }
+        String s = FORMATTED[seconds];
+        if (s == null) {
+            s = doFormat(seconds);
+            FORMATTED[seconds] = s;
+        }
+        return s;
+    }
+
+    private static String doFormat(int seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+}